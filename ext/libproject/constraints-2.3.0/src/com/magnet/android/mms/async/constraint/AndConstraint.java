@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+
+/**
+ * This constraint is met when all of its child constraints are met.  The
+ * children are checked from the cheapest by their {@link Cost}, and the check
+ * stops at the first child not met.
+ */
+public class AndConstraint extends CompositeConstraint {
+  private static final long serialVersionUID = 7152584210048305051L;
+
+  /**
+   * Default constructor.
+   * @param constraints At least one constraint.
+   */
+  public AndConstraint(Constraint... constraints) {
+    super(constraints, true);
+  }
+
+  /**
+   * Check if all child constraints are met.
+   * @param appContext The application context.
+   * @return true if all are met; otherwise, false.
+   */
+  @Override
+  public boolean isAllowed(Context appContext) {
+    for (Constraint child : getChildren()) {
+      if (!child.isAllowed(appContext)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+
+/**
+ * The last location fix broadcasted to {@link LocationReceiver}, as long as it
+ * is not older than a maximum age nor the freshness window of the
+ * {@link LocationSnapshot}, so it is not preferred over a fresher fix from the
+ * other sources.  It costs no system call.
+ */
+public class CachedLocationSource implements LocationSource {
+  /**
+   * The default maximum age in milliseconds.  The freshness window of the
+   * {@link LocationSnapshot} applies if shorter.
+   */
+  public final static long DEFAULT_MAX_AGE = 2 * 60 * 1000L;  // 2 minutes
+
+  private static Location sLocation;
+  private static long sReceivedAt;
+  private final long mMaxAge;
+
+  /**
+   * Constructor with the default maximum age.
+   */
+  public CachedLocationSource() {
+    this(DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * Constructor with a maximum age.  The freshness window of the
+   * {@link LocationSnapshot} applies if shorter.
+   * @param maxAge The maximum age in milliseconds.
+   */
+  public CachedLocationSource(long maxAge) {
+    mMaxAge = maxAge;
+  }
+
+  /**
+   * Remember a broadcasted location fix.
+   * @param location A location fix.
+   */
+  static synchronized void put(Location location) {
+    if (location != null) {
+      sLocation = location;
+      sReceivedAt = SystemClock.elapsedRealtime();
+    }
+  }
+
+  /**
+   * Get the last broadcasted location fix if it is not too old.
+   * @param appContext The application context.
+   * @return The location fix, or null.
+   */
+  @Override
+  public Location getLocation(Context appContext) {
+    long maxAge = Math.min(mMaxAge, LocationSnapshot.getFreshness());
+    synchronized(CachedLocationSource.class) {
+      if (sLocation == null || SystemClock.elapsedRealtime() - sReceivedAt > maxAge) {
+        return null;
+      }
+      return sLocation;
+    }
+  }
+
+  /**
+   * Get the cost of getting a location.
+   * @return {@link Cost#CACHED}
+   */
+  @Override
+  public int getCost() {
+    return Cost.CACHED;
+  }
+}
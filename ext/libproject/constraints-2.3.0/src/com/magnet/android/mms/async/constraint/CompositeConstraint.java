@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.io.ObjectStreamException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+
+/**
+ * The base of the constraints combining other constraints.  The start and
+ * stop of the monitoring are propagated to all child constraints.
+ * @see AndConstraint
+ * @see OrConstraint
+ * @see NotConstraint
+ */
+public abstract class CompositeConstraint implements Constraint,
+    Signals.Dependent, Cost.Estimated {
+  private static final long serialVersionUID = -3787849020171137028L;
+
+  private final static Comparator<Constraint> BY_COST = new Comparator<Constraint>() {
+    @Override
+    public int compare(Constraint lhs, Constraint rhs) {
+      int lcost = Cost.of(lhs);
+      int rcost = Cost.of(rhs);
+      return (lcost < rcost) ? -1 : ((lcost == rcost) ? 0 : 1);
+    }
+  };
+
+  private final Constraint[] mChildren;
+
+  /**
+   * Constructor.
+   * @param children The child constraints.
+   * @param byCost true to check the children in the order of their cost;
+   *          false to keep the given order.
+   */
+  CompositeConstraint(Constraint[] children, boolean byCost) {
+    if (children == null || children.length == 0) {
+      throw new IllegalArgumentException("At least one constraint is required.");
+    }
+    mChildren = children.clone();
+    for (Constraint child : mChildren) {
+      if (child == null) {
+        throw new IllegalArgumentException("A constraint cannot be null.");
+      }
+    }
+    if (byCost) {
+      // The sort is stable; the constraints of the same cost keep their order.
+      Arrays.sort(mChildren, BY_COST);
+    }
+  }
+
+  /**
+   * Get the signals which the child constraints depend on.
+   * @return A bitmask of the signals.
+   */
+  @Override
+  public int getSignals() {
+    int signals = 0;
+    for (Constraint child : mChildren) {
+      signals |= Signals.of(child);
+    }
+    return signals;
+  }
+
+  /**
+   * Get the cost of checking all child constraints.
+   * @return The sum of the costs.
+   */
+  @Override
+  public int getCost() {
+    int cost = 0;
+    for (Constraint child : mChildren) {
+      cost += Cost.of(child);
+    }
+    return cost;
+  }
+
+  /**
+   * Start monitoring all child constraints after the call is queued.
+   * @param appContext The application context.
+   */
+  @Override
+  public void startInBackground(Context appContext) {
+    for (Constraint child : mChildren) {
+      child.startInBackground(appContext);
+    }
+  }
+
+  /**
+   * Stop monitoring all child constraints after the call is done.
+   * @param appContext The application context.
+   */
+  @Override
+  public void stopInBackground(Context appContext) {
+    for (Constraint child : mChildren) {
+      child.stopInBackground(appContext);
+    }
+  }
+
+  /**
+   * Get the child constraints in the order they are checked.
+   * @return The child constraints; the array must not be modified.
+   */
+  Constraint[] getChildren() {
+    return mChildren;
+  }
+
+  /**
+   * Replace this constraint with its compact form for serialization.
+   * @return The compact form.
+   * @throws ObjectStreamException
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    return ConstraintCodec.replace(this);
+  }
+}
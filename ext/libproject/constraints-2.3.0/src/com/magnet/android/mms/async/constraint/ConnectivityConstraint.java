@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.io.ObjectStreamException;
+
+import android.content.Context;
+
+/**
+ * This constraint gates for the network connectivity using the
+ * {@link ConnectivitySnapshot}, so it is cheaper to check than
+ * {@link WifiConstraint} or {@link WWANConstraint}.  This class requires
+ * {@link NetworkStateReceiver}.
+ * @see com.magnet.android.mms.async.constraint.NetworkStateReceiver
+ */
+public class ConnectivityConstraint implements Constraint, Signals.Dependent,
+                                               Cost.Estimated {
+  private static final long serialVersionUID = 5077660444904448691L;
+  /**
+   * WiFi connectivity.
+   */
+  public final static int WIFI = 1;
+  /**
+   * WiMax/3G/4G connectivity.
+   */
+  public final static int WWAN = 2;
+  /**
+   * WiFi or WiMax/3G/4G connectivity.
+   */
+  public final static int MOBILE = WIFI | WWAN;
+
+  private int mNetwork;
+  private boolean mAllowRoaming;
+
+  /**
+   * Constructor disallowing roaming.
+   * @param network {@link #WIFI}, {@link #WWAN} or {@link #MOBILE}.
+   */
+  public ConnectivityConstraint(int network) {
+    this(network, false);
+  }
+
+  /**
+   * Default constructor.
+   * @param network {@link #WIFI}, {@link #WWAN} or {@link #MOBILE}.
+   * @param allowRoaming True to allow roaming on WiMax/3G/4G; false to
+   *          disallow roaming.
+   */
+  public ConnectivityConstraint(int network, boolean allowRoaming) {
+    if (network == 0 || (network & ~MOBILE) != 0) {
+      throw new IllegalArgumentException("Invalid network: "+network);
+    }
+    mNetwork = network;
+    mAllowRoaming = allowRoaming;
+  }
+
+  /**
+   * Check if the active network is one of the specified networks.
+   * @param appContext The application context.
+   * @return true if connected; otherwise, false.
+   */
+  @Override
+  public boolean isAllowed(Context appContext) {
+    ConnectivitySnapshot snapshot = ConnectivitySnapshot.get(appContext);
+    return ((mNetwork & WIFI) != 0 && snapshot.isWifi()) ||
+           ((mNetwork & WWAN) != 0 && snapshot.isWWAN(mAllowRoaming));
+  }
+
+  /**
+   * Get the signals this constraint depends on.
+   * @return A bitmask of the network signals.
+   */
+  @Override
+  public int getSignals() {
+    int signals = 0;
+    if ((mNetwork & WIFI) != 0) {
+      signals |= Signals.WIFI;
+    }
+    if ((mNetwork & WWAN) != 0) {
+      signals |= Signals.WWAN | Signals.ROAMING;
+    }
+    return signals;
+  }
+
+  /**
+   * Get the cost of checking this constraint.
+   * @return {@link Cost#CACHED}
+   */
+  @Override
+  public int getCost() {
+    return Cost.CACHED;
+  }
+
+  /**
+   * Stop monitoring this constraint after the call is done.
+   * @param appContext The application context.
+   */
+  @Override
+  public void stopInBackground(Context appContext) {
+    Signals.removePending(getSignals());
+  }
+
+  /**
+   * Start monitoring this constraint after the call is queued.
+   * @param appContext The application context.
+   */
+  @Override
+  public void startInBackground(Context appContext) {
+    NetworkStateReceiver.enableReceiver(appContext, true);
+    Signals.addPending(getSignals());
+  }
+
+  int getNetwork() {
+    return mNetwork;
+  }
+
+  boolean isAllowRoaming() {
+    return mAllowRoaming;
+  }
+
+  /**
+   * Replace this constraint with its compact form for serialization.
+   * @return The compact form.
+   * @throws ObjectStreamException
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    return ConstraintCodec.replace(this);
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+
+/**
+ * The state of the active network shared by all network based constraints.
+ * It is captured once per connectivity broadcast by
+ * {@link NetworkSignalReceiver}, so a drain of the queued requests reads the
+ * network type, roaming and metered status without a call to
+ * ConnectivityManager for each request.  If the connectivity changes are not
+ * tracked, the snapshot is captured again after a short freshness window.
+ */
+public class ConnectivitySnapshot {
+  /**
+   * The freshness window in milliseconds when the connectivity changes are
+   * tracked.
+   */
+  public final static long TRACKED_FRESHNESS = Signals.NETWORK_MAX_AGE;
+  /**
+   * The freshness window in milliseconds when the connectivity changes are
+   * not tracked.
+   */
+  public final static long UNTRACKED_FRESHNESS = 1000L;
+
+  private final static String TAG = "ConnectivitySnapshot";
+  private static ConnectivitySnapshot sCurrent;
+
+  private final int mType;
+  private final int mSubtype;
+  private final boolean mConnected;
+  private final boolean mRoaming;
+  private final boolean mMetered;
+  private final long mCapturedAt;
+  private int mChanged;
+
+  private ConnectivitySnapshot(Context context) {
+    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
+        Context.CONNECTIVITY_SERVICE);
+    NetworkInfo info = cm.getActiveNetworkInfo();
+    mType = (info == null) ? -1 : info.getType();
+    mSubtype = (info == null) ? -1 : info.getSubtype();
+    mConnected = (info != null) && info.isConnected();
+    mRoaming = (info != null) && info.isRoaming();
+    mMetered = (info != null) && cm.isActiveNetworkMetered();
+    mCapturedAt = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Get the current snapshot.  It is captured again if it is older than the
+   * freshness window.
+   * @param context The application context.
+   * @return A non-null snapshot.
+   */
+  public static ConnectivitySnapshot get(Context context) {
+    long freshness = Signals.track(context) ? TRACKED_FRESHNESS : UNTRACKED_FRESHNESS;
+    synchronized(ConnectivitySnapshot.class) {
+      if (sCurrent == null || sCurrent.getAge() > freshness) {
+        sCurrent = new ConnectivitySnapshot(context);
+      }
+      return sCurrent;
+    }
+  }
+
+  /**
+   * Capture a new snapshot after a connectivity change, and change the
+   * generations of the network {@link Signals} which have changed.
+   * @param context The application context.
+   * @return The new snapshot.
+   */
+  public static ConnectivitySnapshot update(Context context) {
+    ConnectivitySnapshot snapshot = new ConnectivitySnapshot(context);
+    ConnectivitySnapshot old;
+    synchronized(ConnectivitySnapshot.class) {
+      old = sCurrent;
+      sCurrent = snapshot;
+    }
+    int changed = snapshot.diff(old);
+    snapshot.mChanged = changed;
+    Signals.changed(changed);
+    if (Log.isLoggable(Log.DEBUG)) {
+      Log.d(TAG, "update() "+snapshot+", changed="+changed);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Discard the current snapshot.  The next {@link #get(Context)} will
+   * capture a new one.
+   */
+  public static synchronized void invalidate() {
+    sCurrent = null;
+    Signals.changed(Signals.NETWORK);
+  }
+
+  /**
+   * Check if the active network is a connected WiFi.  It is the same
+   * condition as {@link WifiConstraint}.
+   * @return true if connected to WiFi; otherwise, false.
+   */
+  public boolean isWifi() {
+    return mType == ConnectivityManager.TYPE_WIFI && mConnected;
+  }
+
+  /**
+   * Check if the active network is a connected WiMax/3G/4G network.  It is
+   * the same condition as {@link WWANConstraint}.
+   * @param allowRoaming true to allow roaming; false to disallow roaming.
+   * @return true if connected to WiMax/3G/4G; otherwise, false.
+   */
+  public boolean isWWAN(boolean allowRoaming) {
+    boolean wwan = mType == ConnectivityManager.TYPE_WIMAX ||
+        (mType == ConnectivityManager.TYPE_MOBILE &&
+         (mSubtype >= TelephonyManager.NETWORK_TYPE_HSDPA ||
+          mSubtype == TelephonyManager.NETWORK_TYPE_EVDO_A ||
+          mSubtype == TelephonyManager.NETWORK_TYPE_UMTS));
+    return wwan && mConnected && (allowRoaming || !mRoaming);
+  }
+
+  /**
+   * Check if the active network is connected.
+   * @return true if connected; otherwise, false.
+   */
+  public boolean isConnected() {
+    return mConnected;
+  }
+
+  /**
+   * Check if the active network is roaming.
+   * @return true if roaming; otherwise, false.
+   */
+  public boolean isRoaming() {
+    return mRoaming;
+  }
+
+  /**
+   * Check if the active network is metered.
+   * @return true if metered; otherwise, false.
+   */
+  public boolean isMetered() {
+    return mMetered;
+  }
+
+  /**
+   * Get the type of the active network.
+   * @return One of the ConnectivityManager TYPE constants, or -1 if none.
+   */
+  public int getType() {
+    return mType;
+  }
+
+  /**
+   * Get the subtype of the active network.
+   * @return One of the TelephonyManager NETWORK_TYPE constants, or -1 if none.
+   */
+  public int getSubtype() {
+    return mSubtype;
+  }
+
+  /**
+   * Get the network signals which changed when this snapshot was captured by
+   * {@link #update(Context)}.
+   * @return A bitmask of the network signals; 0 if none or not an update.
+   */
+  int getChanged() {
+    return mChanged;
+  }
+
+  /**
+   * Get the age of this snapshot.
+   * @return The elapsed time in milliseconds since it was captured.
+   */
+  public long getAge() {
+    return SystemClock.elapsedRealtime() - mCapturedAt;
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectivitySnapshot[type="+mType+", subtype="+mSubtype+
+        ", connected="+mConnected+", roaming="+mRoaming+", metered="+mMetered+"]";
+  }
+
+  /*
+   * Get the network signals which differ from an older snapshot.
+   */
+  private int diff(ConnectivitySnapshot old) {
+    if (old == null) {
+      return Signals.NETWORK;
+    }
+    int changed = 0;
+    if (isWifi() != old.isWifi()) {
+      changed |= Signals.WIFI;
+    }
+    if (mType != old.mType || mSubtype != old.mSubtype || mConnected != old.mConnected) {
+      changed |= Signals.WWAN;
+    }
+    if (mRoaming != old.mRoaming) {
+      changed |= Signals.ROAMING;
+    }
+    return changed;
+  }
+}
@@ -0,0 +1,498 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * A compact binary codec for the constraints in this package.  When a
+ * constraint is serialized into the persistent queue, it is replaced by a
+ * {@link CompactForm} which writes a version, a type tag and only the tagged
+ * fields with non-default values, instead of the class descriptors of the
+ * constraint and its nested constraints.  The children of the composite
+ * constraints are written in the compact form if supported, or by the Java
+ * serialization otherwise.  The forms serialized by the previous
+ * releases are still read by the default Java serialization.
+ * <p>
+ * The version is bumped whenever a type or field tag is added, and each
+ * constraint is written with the lowest version that has all its tags, so a
+ * reader of an older version can still read it.  Version 1 has the geo and
+ * mobile constraints; version 2 adds the composite and connectivity
+ * constraints, and the hysteresis fields.
+ */
+public final class ConstraintCodec {
+  final static int VERSION = 2;
+
+  // Type tags
+  private final static int GEO_POINT = 1;
+  private final static int WIFI_AND_GEO_POINT = 2;
+  private final static int WWAN_AND_GEO_POINT = 3;
+  private final static int GEO_REGION = 4;
+  private final static int WIFI_AND_GEO_REGION = 5;
+  private final static int WWAN_AND_GEO_REGION = 6;
+  private final static int MOBILE = 7;
+  private final static int AND = 8;
+  private final static int OR = 9;
+  private final static int NOT = 10;
+  private final static int CONNECTIVITY = 11;
+  private final static int V1_MAX_TYPE = MOBILE;
+
+  // Field tags
+  private final static int END = 0;
+  private final static int F_ID = 1;          // UTF
+  private final static int F_LAT = 2;         // double
+  private final static int F_LNG = 3;         // double
+  private final static int F_RADIUS = 4;      // float
+  private final static int F_DURATION = 5;    // long, default NEVER_EXPIRE
+  private final static int F_OUT = 6;         // no value; default is inside
+  private final static int F_REGION_HASH = 7; // long
+  private final static int F_REGION = 8;      // int count, count * 2 doubles
+  private final static int F_ROAMING = 9;     // no value; default disallowed
+  private final static int F_CHILD = 10;      // byte form, child constraint
+  private final static int F_NETWORK = 11;    // byte
+  private final static int F_HYSTERESIS = 12; // float
+  private final static int F_DWELL = 13;      // long
+  private final static int F_ACCURACY = 14;   // no value; default raw fix
+  private final static int V1_MAX_FIELD = F_ROAMING;
+
+  // Child forms
+  private final static int CHILD_COMPACT = 0; // encoded by this codec
+  private final static int CHILD_OBJECT = 1;  // Java serialization
+
+  private static long sDecodes;
+  private static long sDecodeNanos;
+  private static long sMaxDecodeNanos;
+
+  private ConstraintCodec() {
+  }
+
+  /**
+   * The serialized form of a constraint written by {@link ConstraintCodec}.
+   * It is resolved to the original constraint when deserialized.
+   */
+  public static final class CompactForm implements Externalizable {
+    private static final long serialVersionUID = -3590931716429355418L;
+    private Constraint mConstraint;
+
+    /**
+     * Constructor for deserialization only.
+     */
+    public CompactForm() {
+    }
+
+    CompactForm(Constraint constraint) {
+      mConstraint = constraint;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+      encode(mConstraint, out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+      long start = System.nanoTime();
+      mConstraint = decode(in);
+      countDecode(System.nanoTime() - start);
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+      if (mConstraint == null) {
+        throw new InvalidObjectException("Missing constraint");
+      }
+      return mConstraint;
+    }
+  }
+
+  /**
+   * Get the number of constraints deserialized from the compact form, e.g.
+   * while the pending calls are restored at the process start.
+   * @return The number of constraints.
+   */
+  public static synchronized long getDecodeCount() {
+    return sDecodes;
+  }
+
+  /**
+   * Get the total time spent to deserialize the constraints from the compact
+   * form, excluding the Java serialization overhead.
+   * @return The time in nanoseconds.
+   */
+  public static synchronized long getDecodeNanos() {
+    return sDecodeNanos;
+  }
+
+  /**
+   * Get the longest time spent to deserialize a constraint.
+   * @return The time in nanoseconds.
+   */
+  public static synchronized long getMaxDecodeNanos() {
+    return sMaxDecodeNanos;
+  }
+
+  private static synchronized void countDecode(long nanos) {
+    ++sDecodes;
+    sDecodeNanos += nanos;
+    sMaxDecodeNanos = Math.max(sMaxDecodeNanos, nanos);
+  }
+
+  /**
+   * Get the replacement of a constraint for serialization.
+   * @param constraint A constraint.
+   * @return A compact form, or the constraint itself if it is not supported.
+   */
+  static Object replace(Constraint constraint) {
+    return (tagOf(constraint) == 0) ? constraint : new CompactForm(constraint);
+  }
+
+  private static int tagOf(Constraint constraint) {
+    Class<?> clz = constraint.getClass();
+    if (clz == GeoPointConstraint.class) {
+      return GEO_POINT;
+    } else if (clz == WifiAndGeoPointConstraint.class) {
+      return WIFI_AND_GEO_POINT;
+    } else if (clz == WWANAndGeoPointConstraint.class) {
+      return WWAN_AND_GEO_POINT;
+    } else if (clz == GeoRegionConstraint.class) {
+      return GEO_REGION;
+    } else if (clz == WifiAndGeoRegionConstraint.class) {
+      return WIFI_AND_GEO_REGION;
+    } else if (clz == WWANAndGeoRegionConstraint.class) {
+      return WWAN_AND_GEO_REGION;
+    } else if (clz == MobileConstraint.class &&
+               ((MobileConstraint) constraint).getAllowRoaming() != null) {
+      return MOBILE;
+    } else if (clz == AndConstraint.class) {
+      return AND;
+    } else if (clz == OrConstraint.class) {
+      return OR;
+    } else if (clz == NotConstraint.class) {
+      return NOT;
+    } else if (clz == ConnectivityConstraint.class) {
+      return CONNECTIVITY;
+    }
+    return 0;
+  }
+
+  /**
+   * Encode a supported constraint.
+   * @param constraint A constraint.
+   * @param out The output.
+   * @throws IOException
+   */
+  static void encode(Constraint constraint, DataOutput out) throws IOException {
+    int tag = tagOf(constraint);
+    if (tag == 0) {
+      throw new IOException("Unsupported constraint: "+constraint.getClass().getName());
+    }
+    out.writeByte(versionOf(constraint, tag));
+    out.writeByte(tag);
+    switch (tag) {
+    case GEO_POINT:
+    case WIFI_AND_GEO_POINT:
+    case WWAN_AND_GEO_POINT:
+      GeoPointConstraint point = (GeoPointConstraint) constraint;
+      writeId(out, point.getId());
+      out.writeByte(F_LAT);
+      out.writeDouble(point.getLatitude());
+      out.writeByte(F_LNG);
+      out.writeDouble(point.getLongitude());
+      out.writeByte(F_RADIUS);
+      out.writeFloat(point.getRadius());
+      if (point.getDuration() != Geofence.NEVER_EXPIRE) {
+        out.writeByte(F_DURATION);
+        out.writeLong(point.getDuration());
+      }
+      if (!point.isIn()) {
+        out.writeByte(F_OUT);
+      }
+      writeHysteresis(out, point.getHysteresis());
+      break;
+    case GEO_REGION:
+    case WIFI_AND_GEO_REGION:
+    case WWAN_AND_GEO_REGION:
+      GeoRegionConstraint region = (GeoRegionConstraint) constraint;
+      writeId(out, region.getId());
+      if (region.getRegionHash() != 0L) {
+        out.writeByte(F_REGION_HASH);
+        out.writeLong(region.getRegionHash());
+      }
+      GeoRegionConstraint.Point[] points = region.getRegion();
+      if (points != null) {
+        out.writeByte(F_REGION);
+        out.writeInt(points.length);
+        for (GeoRegionConstraint.Point pt : points) {
+          out.writeDouble(pt.lat);
+          out.writeDouble(pt.lng);
+        }
+      }
+      if (!region.isIn()) {
+        out.writeByte(F_OUT);
+      }
+      writeHysteresis(out, region.getHysteresis());
+      break;
+    case MOBILE:
+      if (((MobileConstraint) constraint).getAllowRoaming()) {
+        out.writeByte(F_ROAMING);
+      }
+      break;
+    case AND:
+    case OR:
+    case NOT:
+      for (Constraint child : ((CompositeConstraint) constraint).getChildren()) {
+        out.writeByte(F_CHILD);
+        writeChild(out, child);
+      }
+      break;
+    case CONNECTIVITY:
+      ConnectivityConstraint network = (ConnectivityConstraint) constraint;
+      out.writeByte(F_NETWORK);
+      out.writeByte(network.getNetwork());
+      if (network.isAllowRoaming()) {
+        out.writeByte(F_ROAMING);
+      }
+      break;
+    }
+    out.writeByte(END);
+  }
+
+  /**
+   * Decode a constraint encoded by {@link #encode(Constraint, DataOutput)}.
+   * @param in The input.
+   * @return The constraint.
+   * @throws IOException
+   */
+  static Constraint decode(DataInput in) throws IOException {
+    int version = in.readUnsignedByte();
+    if (version < 1 || version > VERSION) {
+      throw new StreamCorruptedException("Unsupported version: "+version);
+    }
+    int tag = in.readUnsignedByte();
+    if (version == 1 && tag > V1_MAX_TYPE) {
+      throw new StreamCorruptedException("Unknown constraint type: "+tag);
+    }
+    String id = null;
+    double lat = 0, lng = 0;
+    float radius = 0;
+    long duration = Geofence.NEVER_EXPIRE;
+    boolean inside = true;
+    boolean roaming = false;
+    long regionHash = 0L;
+    GeoRegionConstraint.Point[] points = null;
+    ArrayList<Constraint> children = null;
+    int network = 0;
+    float margin = 0;
+    long dwellTime = 0;
+    boolean accuracyAware = false;
+    int field;
+    while ((field = in.readUnsignedByte()) != END) {
+      if (version == 1 && field > V1_MAX_FIELD) {
+        throw new StreamCorruptedException("Unknown field: "+field);
+      }
+      switch (field) {
+      case F_ID:
+        id = in.readUTF();
+        break;
+      case F_LAT:
+        lat = in.readDouble();
+        break;
+      case F_LNG:
+        lng = in.readDouble();
+        break;
+      case F_RADIUS:
+        radius = in.readFloat();
+        break;
+      case F_DURATION:
+        duration = in.readLong();
+        break;
+      case F_OUT:
+        inside = false;
+        break;
+      case F_REGION_HASH:
+        regionHash = in.readLong();
+        break;
+      case F_REGION:
+        int n = in.readInt();
+        if (n < 0) {
+          throw new StreamCorruptedException("Invalid region size: "+n);
+        }
+        points = new GeoRegionConstraint.Point[n];
+        for (int i = 0; i < n; i++) {
+          double ptLat = in.readDouble();
+          points[i] = new GeoRegionConstraint.Point(ptLat, in.readDouble());
+        }
+        break;
+      case F_ROAMING:
+        roaming = true;
+        break;
+      case F_CHILD:
+        if (children == null) {
+          children = new ArrayList<Constraint>(2);
+        }
+        children.add(readChild(in));
+        break;
+      case F_NETWORK:
+        network = in.readUnsignedByte();
+        break;
+      case F_HYSTERESIS:
+        margin = in.readFloat();
+        break;
+      case F_DWELL:
+        dwellTime = in.readLong();
+        break;
+      case F_ACCURACY:
+        accuracyAware = true;
+        break;
+      default:
+        throw new StreamCorruptedException("Unknown field: "+field);
+      }
+    }
+    GeoPointConstraint point = null;
+    GeoRegionConstraint region = null;
+    switch (tag) {
+    case GEO_POINT:
+      point = new GeoPointConstraint(id, lat, lng, radius, duration, inside);
+      break;
+    case WIFI_AND_GEO_POINT:
+      point = new WifiAndGeoPointConstraint(id, lat, lng, radius, duration, inside);
+      break;
+    case WWAN_AND_GEO_POINT:
+      point = new WWANAndGeoPointConstraint(id, lat, lng, radius, duration, inside);
+      break;
+    case GEO_REGION:
+      region = new GeoRegionConstraint(id, regionHash, points, inside);
+      break;
+    case WIFI_AND_GEO_REGION:
+      region = new WifiAndGeoRegionConstraint(id, regionHash, points, inside);
+      break;
+    case WWAN_AND_GEO_REGION:
+      region = new WWANAndGeoRegionConstraint(id, regionHash, points, inside);
+      break;
+    case MOBILE:
+      return new MobileConstraint(roaming);
+    case AND:
+    case OR:
+    case NOT:
+      if (children == null || (tag == NOT && children.size() != 1)) {
+        throw new StreamCorruptedException("Invalid children of constraint type: "+tag);
+      }
+      Constraint[] array = children.toArray(new Constraint[children.size()]);
+      if (tag == AND) {
+        return new AndConstraint(array);
+      } else if (tag == OR) {
+        return new OrConstraint(array);
+      }
+      return new NotConstraint(array[0]);
+    case CONNECTIVITY:
+      try {
+        return new ConnectivityConstraint(network, roaming);
+      } catch (IllegalArgumentException e) {
+        throw new StreamCorruptedException(e.getMessage());
+      }
+    default:
+      throw new StreamCorruptedException("Unknown constraint type: "+tag);
+    }
+    if (margin != 0 || dwellTime != 0 || accuracyAware) {
+      GeoHysteresis hysteresis = (point != null) ? point.hysteresis() : region.hysteresis();
+      try {
+        hysteresis.setMargin(margin);
+        hysteresis.setDwellTime(dwellTime);
+      } catch (IllegalArgumentException e) {
+        throw new StreamCorruptedException(e.getMessage());
+      }
+      hysteresis.setAccuracyAware(accuracyAware);
+    }
+    return (point != null) ? point : region;
+  }
+
+  /*
+   * Get the lowest version which has all the tags of a constraint.
+   */
+  private static int versionOf(Constraint constraint, int tag) {
+    if (tag > V1_MAX_TYPE) {
+      return VERSION;
+    }
+    GeoHysteresis hysteresis = null;
+    if (constraint instanceof GeoPointConstraint) {
+      hysteresis = ((GeoPointConstraint) constraint).getHysteresis();
+    } else if (constraint instanceof GeoRegionConstraint) {
+      hysteresis = ((GeoRegionConstraint) constraint).getHysteresis();
+    }
+    return (hysteresis != null && hysteresis.isEnabled()) ? VERSION : 1;
+  }
+
+  /*
+   * Write a child constraint in the compact form if supported; otherwise, use
+   * the Java serialization if the output supports it.
+   */
+  private static void writeChild(DataOutput out, Constraint child) throws IOException {
+    if (tagOf(child) != 0) {
+      out.writeByte(CHILD_COMPACT);
+      encode(child, out);
+    } else if (out instanceof ObjectOutput) {
+      out.writeByte(CHILD_OBJECT);
+      ((ObjectOutput) out).writeObject(child);
+    } else {
+      throw new NotSerializableException(child.getClass().getName());
+    }
+  }
+
+  private static Constraint readChild(DataInput in) throws IOException {
+    int form = in.readUnsignedByte();
+    if (form == CHILD_COMPACT) {
+      return decode(in);
+    } else if (form == CHILD_OBJECT && in instanceof ObjectInput) {
+      try {
+        Object child = ((ObjectInput) in).readObject();
+        if (!(child instanceof Constraint)) {
+          throw new InvalidObjectException("Not a constraint: "+child);
+        }
+        return (Constraint) child;
+      } catch (ClassNotFoundException e) {
+        InvalidClassException ice = new InvalidClassException(e.getMessage());
+        ice.initCause(e);
+        throw ice;
+      }
+    }
+    throw new StreamCorruptedException("Unknown child form: "+form);
+  }
+
+  private static void writeHysteresis(DataOutput out, GeoHysteresis hysteresis)
+      throws IOException {
+    if (hysteresis == null) {
+      return;
+    }
+    if (hysteresis.getMargin() != 0) {
+      out.writeByte(F_HYSTERESIS);
+      out.writeFloat(hysteresis.getMargin());
+    }
+    if (hysteresis.getDwellTime() != 0) {
+      out.writeByte(F_DWELL);
+      out.writeLong(hysteresis.getDwellTime());
+    }
+    if (hysteresis.isAccuracyAware()) {
+      out.writeByte(F_ACCURACY);
+    }
+  }
+
+  private static void writeId(DataOutput out, String id) throws IOException {
+    if (id != null) {
+      out.writeByte(F_ID);
+      out.writeUTF(id);
+    }
+  }
+}
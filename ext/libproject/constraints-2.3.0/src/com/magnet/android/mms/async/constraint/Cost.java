@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+/**
+ * The relative cost of checking a constraint.  {@link AndConstraint} and
+ * {@link OrConstraint} check the cheaper constraints first, so a cached
+ * network state can short-circuit a location fix or a polygon test.
+ */
+public final class Cost {
+  /**
+   * Reads a cached state, e.g. the {@link ConnectivitySnapshot}.
+   */
+  public final static int CACHED = 1;
+  /**
+   * Calls a system service, e.g. {@link WifiConstraint}.
+   */
+  public final static int SERVICE = 10;
+  /**
+   * Reads the location fix and tests a circle.
+   */
+  public final static int LOCATION = 20;
+  /**
+   * Reads the location fix and tests a polygon.
+   */
+  public final static int POLYGON = 40;
+  /**
+   * The constraints not estimating their cost.
+   */
+  public final static int UNKNOWN = 100;
+
+  /**
+   * A constraint estimating its cost.
+   */
+  public interface Estimated {
+    /**
+     * Get the relative cost of checking this constraint.
+     * @return One of the Cost constants, or a sum of them.
+     */
+    public int getCost();
+  }
+
+  private Cost() {
+  }
+
+  /**
+   * Get the cost of checking a constraint.
+   * @param constraint A constraint.
+   * @return The estimated cost, or {@link #UNKNOWN} if not estimated.
+   */
+  public static int of(Constraint constraint) {
+    if (constraint instanceof Estimated) {
+      return ((Estimated) constraint).getCost();
+    } else if (constraint instanceof WifiConstraint ||
+               constraint instanceof WWANConstraint) {
+      return SERVICE;
+    }
+    return UNKNOWN;
+  }
+}
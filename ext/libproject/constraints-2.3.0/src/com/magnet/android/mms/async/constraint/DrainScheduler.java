@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.util.ArrayList;
+
+import com.magnet.android.mms.async.CallManager;
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * A scheduler of the queue drains triggered by the location broadcasts.  The
+ * triggers within a short window are coalesced into one drain, which is
+ * dispatched from a background thread.  The process may have been woken only
+ * by the broadcast, so the broadcasts are kept alive by
+ * {@link BroadcastReceiver#goAsync()} and a partial wake lock is held, if the
+ * application has the WAKE_LOCK permission, until the drain has started the
+ * AsyncIntentService which runs the calls.  A location update is skipped if the fix has not moved far
+ * enough from the last drained fix to cross any fence or region boundary by
+ * the smallest hysteresis margin; geo-fence transitions, updates without a
+ * fix, and updates while a hysteresis state is unsettled always drain.
+ */
+public class DrainScheduler {
+  /**
+   * The default window in milliseconds to coalesce the triggers.
+   */
+  public final static long DEFAULT_WINDOW = 1000L;
+  /**
+   * The maximum window; a broadcast must finish within 10 seconds.
+   */
+  public final static long MAX_WINDOW = 5000L;
+  /**
+   * The default time in milliseconds after which an update always drains.
+   */
+  public final static long DEFAULT_MAX_SKIP_AGE = 15 * 60 * 1000L;
+
+  private final static String TAG = "DrainScheduler";
+  private final static float SAFETY_RATIO = 0.9f;
+  private final static long WAKE_LOCK_TIMEOUT = 10 * 1000L;
+  private static DrainScheduler sInstance;
+
+  private final Context mContext;
+  private final Handler mHandler;
+  private final PowerManager.WakeLock mWakeLock;
+  private final ArrayList<BroadcastReceiver.PendingResult> mResults =
+      new ArrayList<BroadcastReceiver.PendingResult>();
+  private long mWindow = DEFAULT_WINDOW;
+  private long mMaxSkipAge = DEFAULT_MAX_SKIP_AGE;
+  private boolean mScheduled;
+  private long mFirstTrigger;
+  private Location mPendingFix;
+  private Location mLastFix;
+  private float mLastBoundary;
+  private long mLastVersion;
+  private long mLastDrain;
+  private long mTriggers;
+  private long mCollapsed;
+  private long mSkipped;
+  private long mDrains;
+  private long mLastLatency;
+  private long mMaxLatency;
+  private long mTotalLatency;
+
+  private final Runnable mDrain = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  /**
+   * Get the singleton of this scheduler.
+   * @param context The application context.
+   * @return The scheduler.
+   */
+  public static synchronized DrainScheduler getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new DrainScheduler(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  private DrainScheduler(Context context) {
+    mContext = context;
+    HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    mHandler = new Handler(thread.getLooper());
+    if (context.checkCallingOrSelfPermission(Manifest.permission.WAKE_LOCK) ==
+        PackageManager.PERMISSION_GRANTED) {
+      PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+      mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+      mWakeLock.setReferenceCounted(false);
+    } else {
+      mWakeLock = null;
+    }
+  }
+
+  /**
+   * Set the window to coalesce the triggers.
+   * @param millis The window in milliseconds, up to {@link #MAX_WINDOW}.
+   */
+  public synchronized void setWindow(long millis) {
+    mWindow = Math.max(0, Math.min(millis, MAX_WINDOW));
+  }
+
+  /**
+   * Set the time after which a location update always drains, even if the
+   * fix has not moved.
+   * @param millis The time in milliseconds.
+   */
+  public synchronized void setMaxSkipAge(long millis) {
+    mMaxSkipAge = millis;
+  }
+
+  /**
+   * Trigger a drain from a location broadcast.
+   * @param loc The location fix in the broadcast, or null.
+   * @param transition true for a geo-fence transition.
+   * @param result The result of {@link BroadcastReceiver#goAsync()}, or null.
+   *          It is finished after the drain, or immediately if skipped.
+   */
+  public void trigger(Location loc, boolean transition,
+                      BroadcastReceiver.PendingResult result) {
+    boolean skip = false;
+    synchronized(this) {
+      ++mTriggers;
+      if (mScheduled) {
+        ++mCollapsed;
+      } else if (!transition && loc != null && !hasMoved(loc)) {
+        ++mSkipped;
+        skip = true;
+      } else {
+        mScheduled = true;
+        mFirstTrigger = SystemClock.elapsedRealtime();
+        // Keep the CPU awake; the delayed post does not advance in sleep.
+        if (mWakeLock != null) {
+          mWakeLock.acquire(mWindow + WAKE_LOCK_TIMEOUT);
+        }
+        mHandler.postDelayed(mDrain, mWindow);
+      }
+      if (!skip) {
+        if (loc != null) {
+          mPendingFix = loc;
+        }
+        if (result != null) {
+          mResults.add(result);
+        }
+      }
+    }
+    if (skip) {
+      if (Log.isLoggable(Log.DEBUG)) {
+        Log.d(TAG, "trigger() skipped; fix has not moved across a boundary");
+      }
+      if (result != null) {
+        result.finish();
+      }
+    }
+  }
+
+  /**
+   * Get the number of triggers.
+   * @return The number of triggers.
+   */
+  public synchronized long getTriggerCount() {
+    return mTriggers;
+  }
+
+  /**
+   * Get the number of triggers coalesced into a scheduled drain.
+   * @return The number of collapsed triggers.
+   */
+  public synchronized long getCollapsedCount() {
+    return mCollapsed;
+  }
+
+  /**
+   * Get the number of triggers skipped because the fix has not moved enough.
+   * @return The number of skipped triggers.
+   */
+  public synchronized long getSkippedCount() {
+    return mSkipped;
+  }
+
+  /**
+   * Get the number of drains.
+   * @return The number of drains.
+   */
+  public synchronized long getDrainCount() {
+    return mDrains;
+  }
+
+  /**
+   * Get the trigger-to-dispatch latency of the last drain, from its first
+   * trigger until the AsyncIntentService is started.  It does not include
+   * running the calls.
+   * @return The latency in milliseconds.
+   */
+  public synchronized long getLastLatency() {
+    return mLastLatency;
+  }
+
+  /**
+   * Get the maximum trigger-to-dispatch latency of the drains.
+   * @return The latency in milliseconds.
+   */
+  public synchronized long getMaxLatency() {
+    return mMaxLatency;
+  }
+
+  /**
+   * Get the average trigger-to-dispatch latency of the drains.
+   * @return The latency in milliseconds.
+   */
+  public synchronized long getAverageLatency() {
+    return (mDrains == 0) ? 0 : mTotalLatency / mDrains;
+  }
+
+  /*
+   * Check if a fix may have crossed a boundary since the last drained fix.
+   * The boundary distance of the last drained fix is cached; it is only a
+   * lower bound until a fence, region or margin is added.  An unsettled
+   * hysteresis, e.g. a dwelling change, may change without crossing it.
+   */
+  private boolean hasMoved(Location loc) {
+    if (mLastFix == null || GeoHysteresis.isAnyUnsettled() ||
+        SystemClock.elapsedRealtime() - mLastDrain >= mMaxSkipAge ||
+        mLastVersion != LocationQosScheduler.getInstance(mContext).getBoundaryVersion()) {
+      return true;
+    }
+    float moved = GeoUtil.distFrom(mLastFix.getLatitude(), mLastFix.getLongitude(),
+                                   loc.getLatitude(), loc.getLongitude());
+    return moved >= mLastBoundary * SAFETY_RATIO;
+  }
+
+  private void drain() {
+    ArrayList<BroadcastReceiver.PendingResult> results;
+    long firstTrigger;
+    Location fix;
+    synchronized(this) {
+      mScheduled = false;
+      results = new ArrayList<BroadcastReceiver.PendingResult>(mResults);
+      mResults.clear();
+      firstTrigger = mFirstTrigger;
+      fix = mPendingFix;
+      mPendingFix = null;
+      mLastDrain = SystemClock.elapsedRealtime();
+    }
+    if (fix != null) {
+      // Cache the boundary distance of the drained fix for hasMoved().
+      LocationQosScheduler scheduler = LocationQosScheduler.getInstance(mContext);
+      long version = scheduler.getBoundaryVersion();
+      float boundary = scheduler.distanceToBoundary(fix.getLatitude(), fix.getLongitude()) +
+                       scheduler.getMinMargin();
+      synchronized(this) {
+        mLastFix = fix;
+        mLastBoundary = boundary;
+        mLastVersion = version;
+      }
+    }
+    try {
+      CallManager.getInstance(mContext).run();
+    } catch (Throwable e) {
+      Log.e(TAG, "drain() failed", e);
+    } finally {
+      long latency = SystemClock.elapsedRealtime() - firstTrigger;
+      synchronized(this) {
+        ++mDrains;
+        mLastLatency = latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+        mTotalLatency += latency;
+        if (!mScheduled && mWakeLock != null && mWakeLock.isHeld()) {
+          mWakeLock.release();
+        }
+      }
+      if (Log.isLoggable(Log.DEBUG)) {
+        Log.d(TAG, "drain() broadcasts="+results.size()+", latency="+latency+"ms");
+      }
+      for (BroadcastReceiver.PendingResult result : results) {
+        result.finish();
+      }
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+/**
+ * A circular geo-fence with precomputed bounds for fast containment tests.
+ * A test first rejects the points outside the bounding box, then accepts the
+ * points inside an inscribed box, then compares the haversine term (the
+ * squared half chord on the unit sphere) against a precomputed threshold.  Only
+ * the points in a thin band around the boundary take the full haversine of
+ * {@link GeoUtil#distFrom(double, double, double, double)}, so the results are
+ * the same as {@link GeoUtil#inCircle(android.location.Location, android.location.Location, float)}.
+ * This class is immutable and thread-safe.
+ */
+public class GeoCircle {
+  private final static double EARTH_RADIUS_IN_METERS = 6371 * 1000;
+  private final static double TOLERANCE = 1e-6;   // relative
+  private final static double INNER_RATIO = 0.45;
+
+  private final double mLat;
+  private final double mLng;
+  private final float mRadius;
+  private final double mCosLat;
+  private final double mOuterLat;   // degrees
+  private final double mOuterLng;   // degrees, or negative for all longitudes
+  private final double mInnerLat;   // degrees
+  private final double mInnerLng;   // degrees
+  private final double mHavLo;
+  private final double mHavHi;
+
+  /**
+   * Constructor with the center and the radius.
+   * @param lat The latitude of the center point.
+   * @param lng The longitude of the center point.
+   * @param radius The radius in meters.
+   */
+  public GeoCircle(double lat, double lng, float radius) {
+    mLat = lat;
+    mLng = lng;
+    mRadius = radius;
+    mCosLat = Math.cos(Math.toRadians(lat));
+
+    double dist = Math.max(radius, 0) / EARTH_RADIUS_IN_METERS;   // angular radius
+    mOuterLat = Math.toDegrees(dist) * (1 + TOLERANCE);
+    double sinLng = Math.sin(dist) / mCosLat;
+    if (Math.abs(lat) + mOuterLat >= 90 || sinLng >= 1) {
+      mOuterLng = -1;
+    } else {
+      mOuterLng = Math.toDegrees(Math.asin(sinLng)) * (1 + TOLERANCE);
+    }
+
+    // Any point in the inner box is within 2 * INNER_RATIO of the radius,
+    // going along the meridian then along the parallel of the point.
+    mInnerLat = Math.toDegrees(dist * INNER_RATIO);
+    double minLat = Math.abs(lat) - mInnerLat;
+    double maxCos = (minLat <= 0) ? 1 : Math.cos(Math.toRadians(minLat));
+    mInnerLng = (Math.abs(lat) + mInnerLat >= 90) ? 0 : mInnerLat / maxCos;
+
+    double sinHalf = Math.sin(dist / 2);
+    double hav = sinHalf * sinHalf;
+    mHavLo = hav * (1 - TOLERANCE);
+    mHavHi = hav * (1 + TOLERANCE);
+  }
+
+  /**
+   * Check if a location is within this circle.
+   * @param lat The latitude of the location.
+   * @param lng The longitude of the location.
+   * @return true if within the circle; otherwise, false.
+   */
+  public boolean contains(double lat, double lng) {
+    double dLat = Math.abs(lat - mLat);
+    if (dLat > mOuterLat) {
+      return false;
+    }
+    double dLng = Math.abs(lng - mLng);
+    if (dLng > 180) {
+      dLng = 360 - dLng;
+    }
+    if (mOuterLng >= 0 && dLng > mOuterLng) {
+      return false;
+    }
+    if (dLat <= mInnerLat && dLng <= mInnerLng) {
+      return true;
+    }
+    double sinLat = Math.sin(Math.toRadians(lat - mLat) / 2);
+    double sinLng = Math.sin(Math.toRadians(lng - mLng) / 2);
+    double a = sinLat * sinLat +
+                sinLng * sinLng * Math.cos(Math.toRadians(lat)) * mCosLat;
+    if (a < mHavLo) {
+      return true;
+    }
+    if (a > mHavHi) {
+      return false;
+    }
+    return GeoUtil.distFrom(lat, lng, mLat, mLng) <= mRadius;
+  }
+
+  /**
+   * Get the latitude of the center point.
+   * @return The latitude.
+   */
+  public double getLatitude() {
+    return mLat;
+  }
+
+  /**
+   * Get the longitude of the center point.
+   * @return The longitude.
+   */
+  public double getLongitude() {
+    return mLng;
+  }
+
+  /**
+   * Get the radius.
+   * @return The radius in meters.
+   */
+  public float getRadius() {
+    return mRadius;
+  }
+
+  /*
+   * Half of the latitude extent of the bounding box in degrees.
+   */
+  double getLatitudeExtent() {
+    return mOuterLat;
+  }
+
+  /*
+   * Half of the longitude extent of the bounding box in degrees, or negative
+   * if the circle covers all longitudes.
+   */
+  double getLongitudeExtent() {
+    return mOuterLng;
+  }
+}
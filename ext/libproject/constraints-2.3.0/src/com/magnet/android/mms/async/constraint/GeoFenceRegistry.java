@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+/**
+ * A process-wide registry of the active circular geo-fences.  The fences are
+ * indexed by a fixed-size latitude/longitude grid, so a location fix only
+ * needs to be tested against the fences overlapping its grid cell.  The set
+ * of fences containing the last fix is kept, so evaluating thousands of
+ * {@link GeoPointConstraint} against the same fix is a hash lookup each.
+ * <br>
+ * Fences are identified by their ID which must be unique; registering an
+ * existing ID with a different center or radius replaces the old fence.
+ */
+public class GeoFenceRegistry {
+  private final static String TAG = "GeoFenceRegistry";
+  private final static double CELL_SIZE = 0.01; // degrees, ~1.1 km of latitude
+  private final static int LNG_CELLS = (int) Math.ceil(360 / CELL_SIZE);
+  private final static int MAX_CELLS_PER_FENCE = 256;
+  private static GeoFenceRegistry sInstance;
+
+  private final HashMap<String, Fence> mFences = new HashMap<String, Fence>();
+  private final HashMap<Long, ArrayList<Fence>> mCells = new HashMap<Long, ArrayList<Fence>>();
+  private final ArrayList<Fence> mLargeFences = new ArrayList<Fence>();
+  private double mFixLat = Double.NaN;
+  private double mFixLng = Double.NaN;
+  private HashSet<String> mFixFences;
+  private long mVersion;
+
+  private static class Fence {
+    final String id;
+    final GeoCircle circle;
+    final long[] cells;   // null if the fence is too large for the grid
+    int refs;             // the number of queued calls using this fence
+
+    Fence(String id, GeoCircle circle, long[] cells) {
+      this.id = id;
+      this.circle = circle;
+      this.cells = cells;
+    }
+
+    boolean contains(double lat, double lng) {
+      return circle.contains(lat, lng);
+    }
+  }
+
+  /**
+   * Get the singleton of this registry.
+   * @return The registry.
+   */
+  public static synchronized GeoFenceRegistry getInstance() {
+    if (sInstance == null) {
+      sInstance = new GeoFenceRegistry();
+    }
+    return sInstance;
+  }
+
+  GeoFenceRegistry() {
+  }
+
+  /**
+   * Add a reference to a circular fence for a queued call.  The fence is
+   * added, or it replaces the fence with the same ID if its center or radius
+   * is different.  Registering the same fence again only adds a reference.
+   * @param id A unique ID of the fence.
+   * @param lat The latitude of the center point.
+   * @param lng The longitude of the center point.
+   * @param radius The radius in meters.
+   */
+  public synchronized void register(String id, double lat, double lng,
+                                    float radius) {
+    Fence old = mFences.get(id);
+    int refs = 1;
+    if (old != null) {
+      if (old.circle.getLatitude() == lat && old.circle.getLongitude() == lng &&
+          old.circle.getRadius() == radius) {
+        ++old.refs;
+        return;
+      }
+      refs += old.refs;
+      if (Log.isLoggable(Log.DEBUG)) {
+        Log.d(TAG, "register() replacing fence id="+id);
+      }
+      remove(old);
+    }
+    GeoCircle circle = new GeoCircle(lat, lng, radius);
+    Fence fence = new Fence(id, circle, coveringCells(circle));
+    fence.refs = refs;
+    mFences.put(id, fence);
+    ++mVersion;
+    if (fence.cells == null) {
+      mLargeFences.add(fence);
+    } else {
+      for (long cell : fence.cells) {
+        ArrayList<Fence> list = mCells.get(cell);
+        if (list == null) {
+          list = new ArrayList<Fence>(2);
+          mCells.put(cell, list);
+        }
+        list.add(fence);
+      }
+    }
+    // Keep the result of the last fix valid.
+    if (mFixFences != null && fence.contains(mFixLat, mFixLng)) {
+      mFixFences.add(id);
+    }
+  }
+
+  /**
+   * Get the number of fences added or replaced.  A boundary distance computed
+   * for a fix stays a lower bound while it does not change.
+   * @return The version of the fences.
+   */
+  synchronized long getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * Remove a reference to a fence after a call is done.  The fence is removed
+   * when the last call using it is done.
+   * @param id The ID of the fence.
+   * @return true if the fence was removed; false if it is still referenced or
+   *          not registered.
+   */
+  public synchronized boolean unregister(String id) {
+    Fence fence = mFences.get(id);
+    if (fence == null || --fence.refs > 0) {
+      return false;
+    }
+    remove(fence);
+    return true;
+  }
+
+  /**
+   * Check if a fence is registered with a center and radius.
+   * @param id The ID of the fence.
+   * @param lat The latitude of the center point.
+   * @param lng The longitude of the center point.
+   * @param radius The radius in meters.
+   * @return true if registered with the same geometry; otherwise, false.
+   */
+  public synchronized boolean isRegistered(String id, double lat, double lng,
+                                           float radius) {
+    Fence fence = mFences.get(id);
+    return fence != null && fence.circle.getLatitude() == lat &&
+           fence.circle.getLongitude() == lng && fence.circle.getRadius() == radius;
+  }
+
+  /**
+   * Check if a location is inside a registered fence.
+   * @param id The ID of the fence.
+   * @param lat The latitude of the location.
+   * @param lng The longitude of the location.
+   * @return true if inside the fence; false if outside or not registered.
+   */
+  public synchronized boolean contains(String id, double lat, double lng) {
+    return resolve(lat, lng).contains(id);
+  }
+
+  /**
+   * Get the ID's of all fences containing a location.
+   * @param lat The latitude of the location.
+   * @param lng The longitude of the location.
+   * @return An unmodifiable set of fence ID's.
+   */
+  public synchronized Set<String> getFences(double lat, double lng) {
+    return Collections.unmodifiableSet(new HashSet<String>(resolve(lat, lng)));
+  }
+
+  /**
+   * Get the number of registered fences.
+   * @return The number of fences.
+   */
+  public synchronized int size() {
+    return mFences.size();
+  }
+
+  /**
+   * Get the distance from a location to the nearest fence boundary.
+   * @param lat The latitude of the location.
+   * @param lng The longitude of the location.
+   * @return The distance in meters, or {@link Float#MAX_VALUE} if no fences.
+   */
+  public synchronized float distanceToBoundary(double lat, double lng) {
+    float min = Float.MAX_VALUE;
+    for (Fence fence : mFences.values()) {
+      float dist = GeoUtil.distFrom(lat, lng, fence.circle.getLatitude(),
+                                    fence.circle.getLongitude());
+      min = Math.min(min, Math.abs(dist - fence.circle.getRadius()));
+    }
+    return min;
+  }
+
+  /**
+   * Get the smallest radius of the registered fences.
+   * @return The radius in meters, or {@link Float#MAX_VALUE} if no fences.
+   */
+  public synchronized float getSmallestRadius() {
+    float min = Float.MAX_VALUE;
+    for (Fence fence : mFences.values()) {
+      min = Math.min(min, fence.circle.getRadius());
+    }
+    return min;
+  }
+
+  private HashSet<String> resolve(double lat, double lng) {
+    if (mFixFences != null && mFixLat == lat && mFixLng == lng) {
+      return mFixFences;
+    }
+    HashSet<String> result = new HashSet<String>();
+    ArrayList<Fence> list = mCells.get(cellOf(lat, lng));
+    if (list != null) {
+      for (Fence fence : list) {
+        if (fence.contains(lat, lng)) {
+          result.add(fence.id);
+        }
+      }
+    }
+    for (Fence fence : mLargeFences) {
+      if (fence.contains(lat, lng)) {
+        result.add(fence.id);
+      }
+    }
+    mFixLat = lat;
+    mFixLng = lng;
+    mFixFences = result;
+    if (Log.isLoggable(Log.VERBOSE)) {
+      Log.v(TAG, "resolve() lat="+lat+", lng="+lng+" => "+result.size()+
+            " of "+mFences.size()+" fences");
+    }
+    return result;
+  }
+
+  private void remove(Fence fence) {
+    mFences.remove(fence.id);
+    if (fence.cells == null) {
+      mLargeFences.remove(fence);
+    } else {
+      for (long cell : fence.cells) {
+        ArrayList<Fence> list = mCells.get(cell);
+        if (list != null) {
+          list.remove(fence);
+          if (list.isEmpty()) {
+            mCells.remove(cell);
+          }
+        }
+      }
+    }
+    if (mFixFences != null) {
+      mFixFences.remove(fence.id);
+    }
+  }
+
+  private static long cellOf(double lat, double lng) {
+    return cell(latIndex(lat), lngIndex(lng));
+  }
+
+  private static long cell(int latIndex, int lngIndex) {
+    return (long) latIndex * LNG_CELLS + lngIndex;
+  }
+
+  private static int latIndex(double lat) {
+    return (int) Math.floor((lat + 90) / CELL_SIZE);
+  }
+
+  private static int lngIndex(double lng) {
+    int index = (int) Math.floor((lng + 180) / CELL_SIZE) % LNG_CELLS;
+    return (index < 0) ? index + LNG_CELLS : index;
+  }
+
+  /*
+   * Get all grid cells overlapping the bounding box of a circle, or null if
+   * the circle covers a pole or too many cells.
+   */
+  private static long[] coveringCells(GeoCircle circle) {
+    double lat = circle.getLatitude();
+    double lng = circle.getLongitude();
+    double dLat = circle.getLatitudeExtent();
+    double dLng = circle.getLongitudeExtent();
+    if (dLng < 0) {
+      return null;
+    }
+    int latLo = latIndex(lat - dLat);
+    int latHi = latIndex(lat + dLat);
+    int lngLo = (int) Math.floor((lng - dLng + 180) / CELL_SIZE);
+    int lngHi = (int) Math.floor((lng + dLng + 180) / CELL_SIZE);
+    long count = (long) (latHi - latLo + 1) * (lngHi - lngLo + 1);
+    if (count > MAX_CELLS_PER_FENCE) {
+      return null;
+    }
+    long[] cells = new long[(int) count];
+    int n = 0;
+    for (int i = latLo; i <= latHi; i++) {
+      for (int j = lngLo; j <= lngHi; j++) {
+        int index = j % LNG_CELLS;
+        cells[n++] = cell(i, (index < 0) ? index + LNG_CELLS : index);
+      }
+    }
+    return cells;
+  }
+}
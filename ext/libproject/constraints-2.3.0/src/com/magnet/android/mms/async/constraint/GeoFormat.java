@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+/**
+ * Allocation-free parsing and formatting of the "latitude, longitude" strings.
+ * The parser reads a range of a CharSequence or a char array into a reusable
+ * {@link LatLng} without regex, split arrays or Address objects; the plain
+ * decimal numbers are converted exactly, and the other forms accepted by
+ * {@link Double#parseDouble(String)} fall back to it.  The formatter appends
+ * to a caller supplied StringBuilder with a fixed precision.
+ */
+public final class GeoFormat {
+  /**
+   * The maximum number of fraction digits of the formatter.
+   */
+  public final static int MAX_PRECISION = 12;
+
+  private final static long MAX_EXACT = 1L << 53;
+  private final static double[] POW10 = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+
+  /**
+   * A reusable holder of a latitude and a longitude.
+   */
+  public static final class LatLng {
+    private double mLat;
+    private double mLng;
+
+    /**
+     * Get the latitude.
+     * @return The latitude.
+     */
+    public double getLatitude() {
+      return mLat;
+    }
+
+    /**
+     * Get the longitude.
+     * @return The longitude.
+     */
+    public double getLongitude() {
+      return mLng;
+    }
+
+    /**
+     * Set the latitude and the longitude.
+     * @param lat The latitude.
+     * @param lng The longitude.
+     */
+    public void set(double lat, double lng) {
+      mLat = lat;
+      mLng = lng;
+    }
+  }
+
+  private GeoFormat() {
+  }
+
+  /**
+   * Parse a "latitude, longitude" string.  Any text after a second comma is
+   * ignored as {@link GeoUtil#parseGeoLocation(String)} does.
+   * @param s The text.
+   * @param start The start index of the range, inclusive.
+   * @param end The end index of the range, exclusive.
+   * @param out The holder of the result.
+   * @return The holder.
+   * @throws NumberFormatException The range is not a "latitude, longitude".
+   */
+  public static LatLng parse(CharSequence s, int start, int end, LatLng out) {
+    int comma = indexOf(s, ',', start, end);
+    if (comma < 0) {
+      throw new NumberFormatException("Missing longitude: "+s.subSequence(start, end));
+    }
+    int next = indexOf(s, ',', comma + 1, end);
+    double lat = parseDouble(s, start, comma);
+    double lng = parseDouble(s, comma + 1, (next < 0) ? end : next);
+    out.set(lat, lng);
+    return out;
+  }
+
+  /**
+   * Parse a "latitude, longitude" string in a char array.
+   * @param buf The text.
+   * @param start The start index of the range, inclusive.
+   * @param end The end index of the range, exclusive.
+   * @param out The holder of the result.
+   * @return The holder.
+   * @throws NumberFormatException The range is not a "latitude, longitude".
+   * @see #parse(CharSequence, int, int, LatLng)
+   */
+  public static LatLng parse(char[] buf, int start, int end, LatLng out) {
+    int comma = indexOf(buf, ',', start, end);
+    if (comma < 0) {
+      throw new NumberFormatException("Missing longitude: "+new String(buf, start, end - start));
+    }
+    int next = indexOf(buf, ',', comma + 1, end);
+    double lat = parseDouble(buf, start, comma);
+    double lng = parseDouble(buf, comma + 1, (next < 0) ? end : next);
+    out.set(lat, lng);
+    return out;
+  }
+
+  /**
+   * Parse a decimal number in a range of text.  The leading and trailing
+   * white spaces are ignored.
+   * @param s The text.
+   * @param start The start index of the range, inclusive.
+   * @param end The end index of the range, exclusive.
+   * @return The value.
+   * @throws NumberFormatException The range is not a number.
+   */
+  public static double parseDouble(CharSequence s, int start, int end) {
+    while (start < end && s.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && s.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    int i = start;
+    boolean negative = false;
+    if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+      negative = (s.charAt(i) == '-');
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = -1;
+    for (; i < end; i++) {
+      char c = s.charAt(i);
+      if (c >= '0' && c <= '9') {
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (fraction >= 0) {
+          fraction++;
+        }
+        if (mantissa > MAX_EXACT) {
+          break;
+        }
+      } else if (c == '.' && fraction < 0) {
+        fraction = 0;
+      } else {
+        break;
+      }
+    }
+    if (i < end || digits == 0 || fraction >= POW10.length) {
+      // Exponents, suffixes, NaN, Infinity, hex and too many digits.
+      return Double.parseDouble(s.subSequence(start, end).toString());
+    }
+    double value = (fraction > 0) ? mantissa / POW10[fraction] : mantissa;
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parse a decimal number in a range of a char array.
+   * @param buf The text.
+   * @param start The start index of the range, inclusive.
+   * @param end The end index of the range, exclusive.
+   * @return The value.
+   * @throws NumberFormatException The range is not a number.
+   * @see #parseDouble(CharSequence, int, int)
+   */
+  public static double parseDouble(char[] buf, int start, int end) {
+    while (start < end && buf[start] <= ' ') {
+      start++;
+    }
+    while (end > start && buf[end - 1] <= ' ') {
+      end--;
+    }
+    int i = start;
+    boolean negative = false;
+    if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+      negative = (buf[i] == '-');
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = -1;
+    for (; i < end; i++) {
+      char c = buf[i];
+      if (c >= '0' && c <= '9') {
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (fraction >= 0) {
+          fraction++;
+        }
+        if (mantissa > MAX_EXACT) {
+          break;
+        }
+      } else if (c == '.' && fraction < 0) {
+        fraction = 0;
+      } else {
+        break;
+      }
+    }
+    if (i < end || digits == 0 || fraction >= POW10.length) {
+      // Exponents, suffixes, NaN, Infinity, hex and too many digits.
+      return Double.parseDouble(new String(buf, start, end - start));
+    }
+    double value = (fraction > 0) ? mantissa / POW10[fraction] : mantissa;
+    return negative ? -value : value;
+  }
+
+  /**
+   * Append a "latitude, longitude" string with a fixed number of fraction
+   * digits.
+   * @param lat The latitude.
+   * @param lng The longitude.
+   * @param precision The number of fraction digits from 0 to
+   *          {@link #MAX_PRECISION}.
+   * @param sb The output.
+   * @return The output.
+   */
+  public static StringBuilder format(double lat, double lng, int precision,
+                                      StringBuilder sb) {
+    formatDouble(lat, precision, sb);
+    sb.append(", ");
+    return formatDouble(lng, precision, sb);
+  }
+
+  /**
+   * Append a number with a fixed number of fraction digits, rounded half
+   * away from zero after scaling; a value within the rounding error of the
+   * scaling from a tie may round either way.
+   * @param value The number.
+   * @param precision The number of fraction digits from 0 to
+   *          {@link #MAX_PRECISION}.
+   * @param sb The output.
+   * @return The output.
+   */
+  public static StringBuilder formatDouble(double value, int precision,
+                                            StringBuilder sb) {
+    if (precision < 0 || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("Invalid precision: "+precision);
+    }
+    double scaled = Math.abs(value) * POW10[precision];
+    if (!(scaled < MAX_EXACT)) {
+      // NaN, Infinity and the values too large for a fixed point.
+      return sb.append(value);
+    }
+    long units = (long) (scaled + 0.5);
+    if (value < 0 && units != 0) {
+      sb.append('-');
+    }
+    long scale = (long) POW10[precision];
+    sb.append(units / scale);
+    if (precision > 0) {
+      sb.append('.');
+      long frac = units % scale;
+      for (long div = scale / 10; div > frac && div > 1; div /= 10) {
+        sb.append('0');
+      }
+      sb.append(frac);
+    }
+    return sb;
+  }
+
+  private static int indexOf(CharSequence s, char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(char[] buf, char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buf[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.io.Serializable;
+
+/**
+ * The hysteresis of a geo constraint near its boundary.  A fix must cross the
+ * boundary by a margin, plus its accuracy radius if enabled, to change the
+ * state; a fix within that band is uncertain and keeps the last state.  A
+ * change must also persist for the dwell time before it counts.  The settings
+ * are serialized with the constraint; the state is not.
+ * <p>
+ * A state is unsettled while a change is dwelling, or while the last fix is
+ * uncertain or on the other side of the boundary.  An unsettled state may
+ * change on a fix which has barely moved, so the {@link DrainScheduler} does
+ * not skip any update while a state is unsettled.
+ */
+final class GeoHysteresis implements Serializable {
+  private static final long serialVersionUID = -6596163804889268379L;
+  final static int UNKNOWN = 0;
+  final static int IN = 1;
+  final static int OUT = 2;
+  private static int sUnsettled;
+
+  private float mMargin;
+  private long mDwellTime;
+  private boolean mUseAccuracy;
+  private transient int mState;
+  private transient int mPending;
+  private transient long mPendingSince;
+  private transient boolean mUnsettled;
+
+  float getMargin() {
+    return mMargin;
+  }
+
+  void setMargin(float meters) {
+    if (meters < 0) {
+      throw new IllegalArgumentException("Invalid hysteresis: "+meters);
+    }
+    mMargin = meters;
+  }
+
+  long getDwellTime() {
+    return mDwellTime;
+  }
+
+  void setDwellTime(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("Invalid dwell time: "+millis);
+    }
+    mDwellTime = millis;
+  }
+
+  boolean isAccuracyAware() {
+    return mUseAccuracy;
+  }
+
+  void setAccuracyAware(boolean useAccuracy) {
+    mUseAccuracy = useAccuracy;
+  }
+
+  /**
+   * Check if any setting differs from a hard boundary on the raw fix.
+   */
+  boolean isEnabled() {
+    return mMargin > 0 || mDwellTime > 0 || mUseAccuracy;
+  }
+
+  /**
+   * Apply a fix to the state.
+   * @param dist The distance in meters from the boundary; positive if inside,
+   *          negative if outside.
+   * @param accuracy The accuracy radius of the fix in meters, or 0.
+   * @param now The elapsed time in milliseconds.
+   * @return {@link #IN}, {@link #OUT}, or {@link #UNKNOWN} until a fix is
+   *          certain.
+   */
+  synchronized int update(float dist, float accuracy, long now) {
+    float band = mUseAccuracy ? accuracy : 0;
+    int candidate;
+    if (mState == IN) {
+      candidate = (dist < -(mMargin + band)) ? OUT : IN;
+    } else if (mState == OUT) {
+      candidate = (dist > mMargin + band) ? IN : OUT;
+    } else {
+      candidate = (dist > band) ? IN : ((dist < -band) ? OUT : UNKNOWN);
+    }
+    if (candidate == mState || candidate == UNKNOWN) {
+      mPending = UNKNOWN;
+    } else if (mState == UNKNOWN || mDwellTime == 0) {
+      // The first certain fix sets the state without dwelling.
+      mState = candidate;
+      mPending = UNKNOWN;
+    } else {
+      if (mPending != candidate) {
+        mPending = candidate;
+        mPendingSince = now;
+      }
+      if (now - mPendingSince >= mDwellTime) {
+        mState = candidate;
+        mPending = UNKNOWN;
+      }
+    }
+    setUnsettled(mPending != UNKNOWN || (mState == IN && dist <= 0) ||
+                 (mState == OUT && dist >= 0) || mState == UNKNOWN);
+    return mState;
+  }
+
+  /**
+   * Check if a change is dwelling; the state may change without a new fix.
+   */
+  synchronized boolean isPending() {
+    return mPending != UNKNOWN;
+  }
+
+  /**
+   * Stop counting this state as unsettled after the constraint is done.
+   */
+  synchronized void release() {
+    setUnsettled(false);
+  }
+
+  /**
+   * Check if the state of any pending constraint is unsettled.
+   */
+  static synchronized boolean isAnyUnsettled() {
+    return sUnsettled > 0;
+  }
+
+  private void setUnsettled(boolean unsettled) {
+    if (mUnsettled != unsettled) {
+      mUnsettled = unsettled;
+      synchronized(GeoHysteresis.class) {
+        sUnsettled += unsettled ? 1 : -1;
+      }
+    }
+  }
+}
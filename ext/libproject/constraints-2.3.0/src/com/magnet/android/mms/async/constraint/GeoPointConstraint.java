@@ -3,16 +3,15 @@
  */
 package com.magnet.android.mms.async.constraint;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.util.Arrays;
-import java.util.List;
 
 import com.google.android.gms.location.Geofence;
-import com.google.android.gms.location.LocationRequest;
 import com.magnet.android.mms.utils.logger.Log;
 
 import android.content.Context;
 import android.location.Location;
+import android.os.SystemClock;
 
 /**
  * This constraint gates for a circular geo-fence.  This class requires
@@ -24,11 +23,10 @@ import android.location.Location;
  * not running.
  * @see com.magnet.android.mms.async.constraint.LocationReceiver
  */
-public class GeoPointConstraint implements Constraint, Serializable {
+public class GeoPointConstraint implements Constraint, Signals.Dependent,
+                                           Cost.Estimated, Serializable {
   private static final long serialVersionUID = 1315207650834154735L;
   private final static String TAG = "GeoPointConstraint";
-  private final static long UPDATE_INTERVAL = 60 * 1000L; // 1 min
-  private final static float UPDATE_DISPLACEMENT = 10.0f; // 10 meters
 
   private String mId;
   private double mLat;
@@ -36,6 +34,9 @@ public class GeoPointConstraint implements Constraint, Serializable {
   private float mRadius;
   private long mDuration;
   private boolean mIn;
+  private GeoHysteresis mHysteresis;  // null if not set
+  private transient SignalMemo mMemo;
+  private transient GeoCircle mCircle;
 
   /**
    * Default Constructor.  The duration becomes effective only after the request
@@ -52,15 +53,23 @@ public class GeoPointConstraint implements Constraint, Serializable {
    */
   public GeoPointConstraint(Context appContext, String id, double lat, double lng,
                         float radius, long duration, boolean in) {
+    this(id, lat, lng, radius, duration, in);
+    
+    // Connect to Google Play Location Service.
+    LocationReceiver.connect(appContext);
+  }
+  
+  /*
+   * Constructor for ConstraintCodec.
+   */
+  GeoPointConstraint(String id, double lat, double lng, float radius,
+                     long duration, boolean in) {
     mId = id;
     mLat = lat;
     mLng = lng;
     mRadius = radius;
     mDuration = duration;
     mIn = in;
-    
-    // Connect to Google Play Location Service.
-    LocationReceiver.init(appContext, 5000L);
   }
   
   /**
@@ -70,23 +79,108 @@ public class GeoPointConstraint implements Constraint, Serializable {
    */
   @Override
   public boolean isAllowed(Context appContext) {
-    Location loc = LocationReceiver.getLastLocation(appContext);
+    // Reuse the result until the location fix changes.  A stale or
+    // invalidated snapshot is captured again, which changes the generation
+    // if the fix differs.
+    LocationSnapshot snapshot = LocationSnapshot.get(appContext, getRequiredAccuracy());
+    if (mMemo == null) {
+      mMemo = new SignalMemo(Signals.LOCATION);
+    }
+    long generation = snapshot.getGeneration();
+    int memo = mMemo.get(generation);
+    if (memo >= 0) {
+      return memo == 1;
+    }
+    Location loc = snapshot.getLocation();
     if (loc == null) {
       if (Log.isLoggable(Log.DEBUG)) {
-        Log.d(TAG, "isAllowed(): getLastLocation() loc="+loc);
+        Log.d(TAG, "isAllowed(): location is not available");
       }
       return false;
     }
-    
-    Location fence = new Location("");
-    fence.setLatitude(mLat);
-    fence.setLongitude(mLng);
+
     if (Log.isLoggable(Log.DEBUG)) {
-      Log.d(TAG, "isAllowed(): distance from loc="+loc+" to fence="+fence+" is "+
-        GeoUtil.distFrom(loc.getLatitude(), loc.getLongitude(), 
-            fence.getLatitude(), fence.getLongitude()));
+      Log.d(TAG, "isAllowed(): distance from loc="+loc+" to fence id="+mId+" is "+
+        GeoUtil.distFrom(loc.getLatitude(), loc.getLongitude(), mLat, mLng));
+    }
+    GeoHysteresis hysteresis = mHysteresis;
+    if (hysteresis == null || !hysteresis.isEnabled()) {
+      // The fence is not registered if this call was restored from the
+      // persistent queue and not started, or if another call replaced it.
+      boolean inside;
+      GeoFenceRegistry registry = GeoFenceRegistry.getInstance();
+      if (registry.isRegistered(mId, mLat, mLng, mRadius)) {
+        inside = registry.contains(mId, loc.getLatitude(), loc.getLongitude());
+      } else {
+        if (mCircle == null) {
+          mCircle = new GeoCircle(mLat, mLng, mRadius);
+        }
+        inside = mCircle.contains(loc.getLatitude(), loc.getLongitude());
+      }
+      boolean allowed = (mIn == inside);
+      mMemo.put(generation, allowed);
+      return allowed;
     }
-    return (mIn == GeoUtil.inCircle(loc, fence, mRadius));
+    float dist = mRadius - GeoUtil.distFrom(loc.getLatitude(), loc.getLongitude(), mLat, mLng);
+    int state = hysteresis.update(dist, loc.getAccuracy(), SystemClock.elapsedRealtime());
+    boolean allowed = (state == (mIn ? GeoHysteresis.IN : GeoHysteresis.OUT));
+    // A dwelling change may complete without a new fix.
+    if (!hysteresis.isPending()) {
+      mMemo.put(generation, allowed);
+    }
+    return allowed;
+  }
+  
+  /**
+   * Set a margin which a fix must cross beyond the fence to change the
+   * result, so a fix jittering near the fence does not flip the result.
+   * @param meters The margin in meters; 0 for none.
+   * @return This constraint.
+   */
+  public GeoPointConstraint setHysteresis(float meters) {
+    hysteresis().setMargin(meters);
+    return this;
+  }
+  
+  /**
+   * Set the time which a fix must stay across the fence before the result
+   * changes.  The first result is not delayed.
+   * @param millis The dwell time in milliseconds; 0 for none.
+   * @return This constraint.
+   */
+  public GeoPointConstraint setDwellTime(long millis) {
+    hysteresis().setDwellTime(millis);
+    return this;
+  }
+  
+  /**
+   * Widen the margin by the accuracy radius of each fix.  A fix whose
+   * accuracy circle overlaps the fence is uncertain and keeps the last result,
+   * or is not allowed if there is no last result.
+   * @param accuracyAware true to use the accuracy; false to use the raw fix.
+   * @return This constraint.
+   */
+  public GeoPointConstraint setAccuracyAware(boolean accuracyAware) {
+    hysteresis().setAccuracyAware(accuracyAware);
+    return this;
+  }
+  
+  /**
+   * Get the signals this constraint depends on.
+   * @return {@link Signals#LOCATION}
+   */
+  @Override
+  public int getSignals() {
+    return Signals.LOCATION;
+  }
+    
+  /**
+   * Get the cost of checking this constraint.
+   * @return {@link Cost#LOCATION}
+   */
+  @Override
+  public int getCost() {
+    return Cost.LOCATION;
   }
     
   /**
@@ -98,7 +192,17 @@ public class GeoPointConstraint implements Constraint, Serializable {
     if (Log.isLoggable(Log.DEBUG)) {
       Log.d(TAG, "stopInBackground() id="+mId);
     }
-    LocationReceiver.removeGeofences(appContext, Arrays.asList(new String[] { mId })); 
+    // Keep the geo-fence for the other calls using it.
+    if (GeoFenceRegistry.getInstance().unregister(mId)) {
+      GeofenceRegistrar.getInstance(appContext).remove(mId);
+    }
+    LocationQosScheduler scheduler = LocationQosScheduler.getInstance(appContext);
+    scheduler.removeMargin(getMargin());
+    scheduler.reschedule();
+    GeoHysteresis hysteresis = mHysteresis;
+    if (hysteresis != null) {
+      hysteresis.release();
+    }
   }
   
   /**
@@ -112,24 +216,91 @@ public class GeoPointConstraint implements Constraint, Serializable {
     }
     
     // Use Google Play Location Service to monitor the geo-fence transition.
-    Geofence[] fences = { new Geofence.Builder()
+    // The registration is batched with other constraints queued at the same
+    // time.
+    Geofence fence = new Geofence.Builder()
       .setRequestId(mId)
       .setCircularRegion(mLat, mLng, mRadius)
       .setExpirationDuration(mDuration)
       .setTransitionTypes(mIn ? Geofence.GEOFENCE_TRANSITION_ENTER : 
                                 Geofence.GEOFENCE_TRANSITION_EXIT)
-      .build()
-    };
-    List<Geofence> list = Arrays.asList(fences);
-    LocationReceiver.addGeofences(appContext, list);
+      .build();
+    GeofenceRegistrar.getInstance(appContext).add(fence);
+    GeoFenceRegistry.getInstance().register(mId, mLat, mLng, mRadius);
     
-    // Specify the QoS for location updates to Google Play Service.
-    if (!LocationReceiver.isQosSet(appContext)) {
-      LocationRequest request = LocationRequest.create();
-      request.setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
-      request.setInterval(UPDATE_INTERVAL);
-      request.setSmallestDisplacement(UPDATE_DISPLACEMENT);
-      LocationReceiver.setQos(appContext, request);
+    // Adjust the QoS for location updates for all pending constraints.
+    LocationQosScheduler scheduler = LocationQosScheduler.getInstance(appContext);
+    scheduler.addMargin(getMargin());
+    scheduler.reschedule();
+  }
+  
+  String getId() {
+    return mId;
+  }
+  
+  double getLatitude() {
+    return mLat;
+  }
+  
+  double getLongitude() {
+    return mLng;
+  }
+  
+  float getRadius() {
+    return mRadius;
+  }
+  
+  long getDuration() {
+    return mDuration;
+  }
+  
+  boolean isIn() {
+    return mIn;
+  }
+  
+  /*
+   * A fix within half of the radius is accurate enough to tell inside from
+   * outside for most of the fence.
+   */
+  float getRequiredAccuracy() {
+    return mRadius / 2;
+  }
+  
+  /*
+   * Get the hysteresis margin; 0 if none.
+   */
+  private float getMargin() {
+    GeoHysteresis hysteresis = mHysteresis;
+    return (hysteresis == null) ? 0 : hysteresis.getMargin();
+  }
+
+  GeoHysteresis getHysteresis() {
+    return mHysteresis;
+  }
+  
+  /*
+   * Get the hysteresis, creating it if not set.
+   */
+  synchronized GeoHysteresis hysteresis() {
+    if (mHysteresis == null) {
+      mHysteresis = new GeoHysteresis();
     }
+    return mHysteresis;
+  }
+  
+  /*
+   * Share the hysteresis of a composite constraint wrapping this constraint.
+   */
+  void shareHysteresis(GeoHysteresis hysteresis) {
+    mHysteresis = hysteresis;
+  }
+  
+  /**
+   * Replace this constraint with its compact form for serialization.
+   * @return The compact form.
+   * @throws ObjectStreamException
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    return ConstraintCodec.replace(this);
   }
 }
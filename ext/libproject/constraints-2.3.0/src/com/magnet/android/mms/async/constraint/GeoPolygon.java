@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+/**
+ * A polygon compiled for fast point containment tests.  The vertices are
+ * stored in primitive arrays, and the edges are bucketed by latitude bands so
+ * that a test only visits the edges crossing the band of the point, after a
+ * bounding box check.  This class is immutable and thread-safe.
+ */
+public class GeoPolygon {
+  private final static int MAX_BANDS = 1024;
+  private final static double EARTH_RADIUS_IN_METERS = 6371 * 1000;
+
+  private final double[] mLats;
+  private final double[] mLngs;
+  private final double mMinLat;
+  private final double mMaxLat;
+  private final double mMinLng;
+  private final double mMaxLng;
+  private final double mBandScale;
+  private final int[][] mBands;   // edge indices by latitude band
+
+  /**
+   * Compile a polygon.
+   * @param lats The latitudes of the vertices.
+   * @param lngs The longitudes of the vertices.
+   */
+  public GeoPolygon(double[] lats, double[] lngs) {
+    if (lats == null || lngs == null || lats.length != lngs.length ||
+        lats.length < 3) {
+      throw new IllegalArgumentException("A region must have at least 3 points.");
+    }
+    int n = lats.length;
+    mLats = lats.clone();
+    mLngs = lngs.clone();
+    double minLat = mLats[0], maxLat = mLats[0];
+    double minLng = mLngs[0], maxLng = mLngs[0];
+    for (int i = 1; i < n; i++) {
+      minLat = Math.min(minLat, mLats[i]);
+      maxLat = Math.max(maxLat, mLats[i]);
+      minLng = Math.min(minLng, mLngs[i]);
+      maxLng = Math.max(maxLng, mLngs[i]);
+    }
+    mMinLat = minLat;
+    mMaxLat = maxLat;
+    mMinLng = minLng;
+    mMaxLng = maxLng;
+
+    int bands = Math.max(1, Math.min(n / 2, MAX_BANDS));
+    mBandScale = (maxLat > minLat) ? bands / (maxLat - minLat) : 0;
+    int[] counts = new int[bands];
+    for (int i = 0, j = n - 1; i < n; j = i++) {
+      if (mLats[i] != mLats[j]) {
+        int lo = band(Math.min(mLats[i], mLats[j]), bands);
+        int hi = band(Math.max(mLats[i], mLats[j]), bands);
+        for (int b = lo; b <= hi; b++) {
+          counts[b]++;
+        }
+      }
+    }
+    mBands = new int[bands][];
+    for (int b = 0; b < bands; b++) {
+      mBands[b] = new int[counts[b]];
+      counts[b] = 0;
+    }
+    for (int i = 0, j = n - 1; i < n; j = i++) {
+      if (mLats[i] != mLats[j]) {
+        int lo = band(Math.min(mLats[i], mLats[j]), bands);
+        int hi = band(Math.max(mLats[i], mLats[j]), bands);
+        for (int b = lo; b <= hi; b++) {
+          mBands[b][counts[b]++] = i;
+        }
+      }
+    }
+  }
+
+  /**
+   * Compile a polygon.
+   * @param region A polygon with at least 3 points.
+   */
+  public GeoPolygon(GeoRegionConstraint.Point[] region) {
+    this(latsOf(region), lngsOf(region));
+  }
+
+  /**
+   * Check if a location is inside this polygon using the even-odd rule.
+   * @param lat The latitude of the location.
+   * @param lng The longitude of the location.
+   * @return true if inside the polygon; otherwise, false.
+   */
+  public boolean contains(double lat, double lng) {
+    if (lat < mMinLat || lat >= mMaxLat || lng < mMinLng || lng > mMaxLng) {
+      return false;
+    }
+    int n = mLats.length;
+    int[] edges = mBands[band(lat, mBands.length)];
+    boolean c = false;
+    for (int k = 0; k < edges.length; k++) {
+      int i = edges[k];
+      int j = (i == 0) ? n - 1 : i - 1;
+      double ilat = mLats[i], jlat = mLats[j];
+      if ((((ilat <= lat) && (lat < jlat)) || ((jlat <= lat) && (lat < ilat))) &&
+          (lng < ((mLngs[j] - mLngs[i]) * (lat - ilat) / (jlat - ilat) + mLngs[i]))) {
+        c = !c;
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Get the approximate distance from a location to the nearest edge of this
+   * polygon, using an equirectangular projection at the location.
+   * @param lat The latitude of the location.
+   * @param lng The longitude of the location.
+   * @return The distance in meters.
+   */
+  public float distanceToBoundary(double lat, double lng) {
+    double scaleLat = Math.toRadians(1) * EARTH_RADIUS_IN_METERS;
+    double scaleLng = scaleLat * Math.cos(Math.toRadians(lat));
+    int n = mLats.length;
+    double min = Double.MAX_VALUE;
+    double jx = x(n - 1, lng, scaleLng), jy = (mLats[n - 1] - lat) * scaleLat;
+    for (int i = 0; i < n; i++) {
+      double ix = x(i, lng, scaleLng), iy = (mLats[i] - lat) * scaleLat;
+      // Distance from the origin to the segment (j, i).
+      double dx = ix - jx, dy = iy - jy;
+      double len = dx * dx + dy * dy;
+      double t = (len > 0) ? -(jx * dx + jy * dy) / len : 0;
+      t = (t < 0) ? 0 : ((t > 1) ? 1 : t);
+      double px = jx + t * dx, py = jy + t * dy;
+      min = Math.min(min, px * px + py * py);
+      jx = ix;
+      jy = iy;
+    }
+    return (float) Math.sqrt(min);
+  }
+
+  /**
+   * Get the number of vertices.
+   * @return The number of vertices.
+   */
+  public int size() {
+    return mLats.length;
+  }
+
+  /**
+   * Get the latitude of a vertex.
+   * @param index The index of the vertex.
+   * @return The latitude.
+   */
+  public double getLatitude(int index) {
+    return mLats[index];
+  }
+
+  /**
+   * Get the longitude of a vertex.
+   * @param index The index of the vertex.
+   * @return The longitude.
+   */
+  public double getLongitude(int index) {
+    return mLngs[index];
+  }
+
+  private double x(int index, double lng, double scaleLng) {
+    double dLng = mLngs[index] - lng;
+    if (dLng > 180) {
+      dLng -= 360;
+    } else if (dLng < -180) {
+      dLng += 360;
+    }
+    return dLng * scaleLng;
+  }
+
+  private int band(double lat, int bands) {
+    int b = (int) ((lat - mMinLat) * mBandScale);
+    return (b < 0) ? 0 : ((b >= bands) ? bands - 1 : b);
+  }
+
+  private static double[] latsOf(GeoRegionConstraint.Point[] region) {
+    if (region == null) {
+      return null;
+    }
+    double[] lats = new double[region.length];
+    for (int i = 0; i < region.length; i++) {
+      lats[i] = region[i].lat;
+    }
+    return lats;
+  }
+
+  private static double[] lngsOf(GeoRegionConstraint.Point[] region) {
+    if (region == null) {
+      return null;
+    }
+    double[] lngs = new double[region.length];
+    for (int i = 0; i < region.length; i++) {
+      lngs[i] = region[i].lng;
+    }
+    return lngs;
+  }
+}
@@ -3,13 +3,14 @@
  */
 package com.magnet.android.mms.async.constraint;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 
-import com.google.android.gms.location.LocationRequest;
 import com.magnet.android.mms.utils.logger.Log;
 
 import android.content.Context;
 import android.location.Location;
+import android.os.SystemClock;
 
 /**
  * This constraint gates for polygon geo-fence.  This class requires Google
@@ -21,15 +22,19 @@ import android.location.Location;
  * running.
  * @see com.magnet.android.mms.async.constraint.LocationReceiver
  */
-public class GeoRegionConstraint implements Constraint, Serializable {
+public class GeoRegionConstraint implements Constraint, Signals.Dependent,
+                                            Cost.Estimated, Serializable {
   private static final long serialVersionUID = 9134773120011606309L;
   private final static String TAG = "GeoRegionConstraint";
-  private final static long UPDATE_INTERVAL = 60 * 1000L; // 1 min
-  private final static float UPDATE_DISPLACEMENT = 10.0f; // 10 meters
 
   private String mId;
-  private Point[] mRegion;
+  private Point[] mRegion;    // only until stored in GeoRegionRegistry
   private boolean mIn;
+  private long mRegionHash;
+  private GeoHysteresis mHysteresis;  // null if not set
+  private transient GeoPolygon mPolygon;
+  private transient GeoRegionRegistry mRegistry;
+  private transient SignalMemo mMemo;
   
   /**
    * A location point with latitude and longitude.
@@ -48,21 +53,33 @@ public class GeoRegionConstraint implements Constraint, Serializable {
       this.lat = lat;
       this.lng = lng;
     }
+
+    /**
+     * Get the latitude.
+     * @return The latitude.
+     */
+    public double getLatitude() {
+      return lat;
+    }
+
+    /**
+     * Get the longitude.
+     * @return The longitude.
+     */
+    public double getLongitude() {
+      return lng;
+    }
   }
   
-  private boolean isPointInPolygon(Point[] poly, Point point) {
-    boolean c = false;
-    for (int i = 0, j = poly.length - 1; i < poly.length; j = i++) {
-      Point ipoly = poly[i];
-      Point jpoly = poly[j];
-      if ((((ipoly.lat <= point.lat) && (point.lat < jpoly.lat)) ||
-          ((jpoly.lat <= point.lat) && (point.lat < ipoly.lat))) &&
-          (point.lng < ((jpoly.lng - ipoly.lng) * (point.lat - ipoly.lat) / 
-              (jpoly.lat - ipoly.lat) + ipoly.lng))) {
-          c = !c;
+  private GeoPolygon getPolygon(Context appContext) {
+    if (mPolygon == null) {
+      if (mRegion != null) {
+        mPolygon = new GeoPolygon(mRegion);
+      } else {
+        mPolygon = GeoRegionRegistry.getInstance(appContext).get(mId, mRegionHash);
       }
     }
-    return c;
+    return mPolygon;
   }
 
   /**
@@ -78,11 +95,28 @@ public class GeoRegionConstraint implements Constraint, Serializable {
       throw new IllegalArgumentException("A region must have at least 3 points.");
     }
     mId = id;
-    mRegion = region;
     mIn = in;
     
+    // Share the region with other calls instead of persisting a copy in
+    // each call.  It is stored in the background; a copy is persisted with
+    // this call if it is not stored yet.
+    mRegistry = GeoRegionRegistry.getInstance(appContext);
+    mRegionHash = mRegistry.register(id, region);
+    mRegion = region;
+    mPolygon = mRegistry.get(id, mRegionHash);
+    
     // Connect to Google Play Location Service.
-    LocationReceiver.init(appContext, 5000L);
+    LocationReceiver.connect(appContext);
+  }
+  
+  /*
+   * Constructor for ConstraintCodec.
+   */
+  GeoRegionConstraint(String id, long regionHash, Point[] region, boolean in) {
+    mId = id;
+    mRegionHash = regionHash;
+    mRegion = region;
+    mIn = in;
   }
 
   /**
@@ -91,20 +125,103 @@ public class GeoRegionConstraint implements Constraint, Serializable {
    */
   @Override
   public boolean isAllowed(Context appContext) {
-    Location loc = LocationReceiver.getLastLocation(appContext);
+    // Reuse the result until the location fix changes.  A stale or
+    // invalidated snapshot is captured again, which changes the generation
+    // if the fix differs.
+    LocationSnapshot snapshot = LocationSnapshot.get(appContext, getRequiredAccuracy());
+    if (mMemo == null) {
+      mMemo = new SignalMemo(Signals.LOCATION);
+    }
+    long generation = snapshot.getGeneration();
+    int memo = mMemo.get(generation);
+    if (memo >= 0) {
+      return memo == 1;
+    }
+    Location loc = snapshot.getLocation();
     if (loc == null) {
       if (Log.isLoggable(Log.DEBUG)) {
-        Log.d(TAG, "getLastLocation() loc="+loc);
+        Log.d(TAG, "isAllowed(): location is not available");
       }
       return false;
     }
-    Point point = new Point(loc.getLatitude(), loc.getLongitude());
-    boolean allowed = (mIn == isPointInPolygon(mRegion, point));
+    GeoPolygon polygon = getPolygon(appContext);
+    if (polygon == null) {
+      Log.e(TAG, "isAllowed(): region is not available, id="+mId);
+      return false;
+    }
+    boolean inside = polygon.contains(loc.getLatitude(), loc.getLongitude());
+    boolean allowed;
+    GeoHysteresis hysteresis = mHysteresis;
+    if (hysteresis == null || !hysteresis.isEnabled()) {
+      allowed = (mIn == inside);
+      mMemo.put(generation, allowed);
+    } else {
+      float dist = polygon.distanceToBoundary(loc.getLatitude(), loc.getLongitude());
+      int state = hysteresis.update(inside ? dist : -dist, loc.getAccuracy(),
+                                    SystemClock.elapsedRealtime());
+      allowed = (state == (mIn ? GeoHysteresis.IN : GeoHysteresis.OUT));
+      // A dwelling change may complete without a new fix.
+      if (!hysteresis.isPending()) {
+        mMemo.put(generation, allowed);
+      }
+    }
     
     if (Log.isLoggable(Log.DEBUG))
       Log.d(TAG, "isAllowed() loc="+loc+", returns "+allowed);
     return allowed;
   }
+  
+  /**
+   * Set a margin which a fix must cross beyond the region boundary to change
+   * the result, so a fix jittering near the boundary does not flip the result.
+   * @param meters The margin in meters; 0 for none.
+   * @return This constraint.
+   */
+  public GeoRegionConstraint setHysteresis(float meters) {
+    hysteresis().setMargin(meters);
+    return this;
+  }
+  
+  /**
+   * Set the time which a fix must stay across the region boundary before the
+   * result changes.  The first result is not delayed.
+   * @param millis The dwell time in milliseconds; 0 for none.
+   * @return This constraint.
+   */
+  public GeoRegionConstraint setDwellTime(long millis) {
+    hysteresis().setDwellTime(millis);
+    return this;
+  }
+  
+  /**
+   * Widen the margin by the accuracy radius of each fix.  A fix whose
+   * accuracy circle overlaps the boundary is uncertain and keeps the last
+   * result, or is not allowed if there is no last result.
+   * @param accuracyAware true to use the accuracy; false to use the raw fix.
+   * @return This constraint.
+   */
+  public GeoRegionConstraint setAccuracyAware(boolean accuracyAware) {
+    hysteresis().setAccuracyAware(accuracyAware);
+    return this;
+  }
+  
+  /**
+   * Get the signals this constraint depends on.
+   * @return {@link Signals#LOCATION}
+   */
+  @Override
+  public int getSignals() {
+    return Signals.LOCATION;
+  }
+
+  /**
+   * Get the cost of checking this constraint.
+   * @return {@link Cost#POLYGON}
+   */
+  @Override
+  public int getCost() {
+    return Cost.POLYGON;
+  }
 
   /**
    * Stop monitoring this constraint after the call is done.
@@ -112,7 +229,17 @@ public class GeoRegionConstraint implements Constraint, Serializable {
    */
   @Override
   public void stopInBackground(Context appContext) {
-    // No-op.
+    LocationQosScheduler scheduler = LocationQosScheduler.getInstance(appContext);
+    scheduler.removeRegion(mId);
+    scheduler.removeMargin(getMargin());
+    scheduler.reschedule();
+    GeoHysteresis hysteresis = mHysteresis;
+    if (hysteresis != null) {
+      hysteresis.release();
+    }
+    if (mRegionHash != 0L) {
+      GeoRegionRegistry.getInstance(appContext).release(mId, mRegionHash);
+    }
   }
   
   /**
@@ -125,13 +252,84 @@ public class GeoRegionConstraint implements Constraint, Serializable {
       Log.d(TAG, "startInBackground() id="+mId);
     }
     
-    // Specify the QoS for location updates to Google Play Service.
-    if (!LocationReceiver.isQosSet(appContext)) {
-      LocationRequest request = LocationRequest.create();
-      request.setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
-      request.setInterval(UPDATE_INTERVAL);
-      request.setSmallestDisplacement(UPDATE_DISPLACEMENT);
-      LocationReceiver.setQos(appContext, request);
+    // Adjust the QoS for location updates for all pending constraints.
+    LocationQosScheduler scheduler = LocationQosScheduler.getInstance(appContext);
+    GeoPolygon polygon = getPolygon(appContext);
+    scheduler.addRegion(mId, polygon);
+    scheduler.addMargin(getMargin());
+    scheduler.reschedule();
+    
+    // Keep the stored region until this call is done.
+    if (mRegionHash != 0L) {
+      GeoRegionRegistry.getInstance(appContext).acquire(mId, mRegionHash, polygon);
+    }
+  }
+  
+  String getId() {
+    return mId;
+  }
+  
+  long getRegionHash() {
+    return mRegionHash;
+  }
+  
+  Point[] getRegion() {
+    // Persist only the hash once the region is stored.
+    GeoRegionRegistry registry = mRegistry;
+    if (registry != null && registry.isStored(mId, mRegionHash)) {
+      return null;
+    }
+    return mRegion;
+  }
+  
+  boolean isIn() {
+    return mIn;
+  }
+  
+  /*
+   * A region has no natural scale; require the hysteresis margin if set.
+   */
+  float getRequiredAccuracy() {
+    GeoHysteresis hysteresis = mHysteresis;
+    return (hysteresis != null && hysteresis.getMargin() > 0) ?
+        hysteresis.getMargin() : LocationSources.ANY_ACCURACY;
+  }
+  
+  /*
+   * Get the hysteresis margin; 0 if none.
+   */
+  private float getMargin() {
+    GeoHysteresis hysteresis = mHysteresis;
+    return (hysteresis == null) ? 0 : hysteresis.getMargin();
+  }
+
+  GeoHysteresis getHysteresis() {
+    return mHysteresis;
+  }
+  
+  /*
+   * Get the hysteresis, creating it if not set.
+   */
+  synchronized GeoHysteresis hysteresis() {
+    if (mHysteresis == null) {
+      mHysteresis = new GeoHysteresis();
     }
+    return mHysteresis;
+  }
+  
+  /*
+   * Share the hysteresis of a composite constraint wrapping this constraint.
+   */
+  void shareHysteresis(GeoHysteresis hysteresis) {
+    mHysteresis = hysteresis;
+  }
+  
+  /**
+   * Replace this constraint with its compact form for serialization.
+   * @return The compact form.
+   * @throws ObjectStreamException
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    return ConstraintCodec.replace(this);
   }
 }
@@ -0,0 +1,408 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+
+/**
+ * A registry of the polygons used by {@link GeoRegionConstraint}.  Each
+ * polygon is stored once in the application private storage, keyed by the
+ * region ID and the hash of its content, and compiled once into a shared
+ * {@link GeoPolygon}.  The constraints only keep the region ID and the content
+ * hash, so the persisted calls do not carry a copy of the polygon.  A region
+ * redefined with different points under the same ID is stored as a separate
+ * version; the calls queued with the old version keep using it.
+ * <p>
+ * The storage is written on a background thread.  Each stored version keeps
+ * a count of the calls referencing it, and it is removed when the last of
+ * them is done.
+ */
+public class GeoRegionRegistry {
+  private final static String TAG = "GeoRegionRegistry";
+  private final static String DIR_NAME = "magnet_georegions";
+  private final static int VERSION = 1;
+  private final static String REFS_SUFFIX = ".refs";
+  private static GeoRegionRegistry sInstance;
+
+  private final File mDir;
+  private final HashMap<String, GeoPolygon> mPolygons = new HashMap<String, GeoPolygon>();
+  private final HashSet<String> mStored = new HashSet<String>();
+  private final Executor mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, TAG);
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  /**
+   * Get the singleton of this registry.
+   * @param context The application context.
+   * @return The registry.
+   */
+  public static synchronized GeoRegionRegistry getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new GeoRegionRegistry(new File(
+          context.getApplicationContext().getFilesDir(), DIR_NAME));
+    }
+    return sInstance;
+  }
+
+  GeoRegionRegistry(File dir) {
+    mDir = dir;
+  }
+
+  /**
+   * Register a region.  The region is stored on a background thread if the
+   * same region has not been stored.
+   * @param id The region ID.
+   * @param region A polygon with at least 3 points.
+   * @return The content hash of the region.
+   * @throws IllegalArgumentException The region has less than 3 points.
+   */
+  public long register(final String id, GeoRegionConstraint.Point[] region) {
+    GeoPolygon compiled = new GeoPolygon(region);
+    final long hash = hash(compiled);
+    final String key = key(id, hash);
+    final GeoPolygon polygon;
+    synchronized(this) {
+      GeoPolygon cached = mPolygons.get(key);
+      if (cached == null) {
+        mPolygons.put(key, compiled);
+        cached = compiled;
+      }
+      polygon = cached;
+    }
+    store(id, hash, polygon, false);
+    return hash;
+  }
+
+  /**
+   * Add a reference to a region after a call gated by it is queued.  The
+   * region is stored again if it was removed.
+   * @param id The region ID.
+   * @param hash The content hash returned by {@link #register(String, GeoRegionConstraint.Point[])}.
+   * @param polygon The region, or null if it is not loaded.
+   */
+  public void acquire(String id, long hash, GeoPolygon polygon) {
+    store(id, hash, polygon, true);
+  }
+
+  /**
+   * Remove a reference to a region after a call is done.  The region is
+   * removed from the storage on a background thread when it is no longer
+   * referenced.
+   * @param id The region ID.
+   * @param hash The content hash returned by {@link #register(String, GeoRegionConstraint.Point[])}.
+   */
+  public void release(final String id, final long hash) {
+    mWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        File file = fileOf(id, hash);
+        int refs = readRefs(file);
+        if (refs < 0) {
+          // Keep the region if the count is unknown.
+          return;
+        }
+        if (--refs > 0) {
+          writeRefs(file, refs);
+          return;
+        }
+        if (Log.isLoggable(Log.DEBUG)) {
+          Log.d(TAG, "release() removing region id="+id);
+        }
+        String key = key(id, hash);
+        synchronized(GeoRegionRegistry.this) {
+          mStored.remove(key);
+          mPolygons.remove(key);
+        }
+        file.delete();
+        refsOf(file).delete();
+      }
+    });
+  }
+
+  /**
+   * Check if a region has been stored.  It does not access the storage; a
+   * region registered by this process is not stored until the background
+   * write is done.
+   * @param id The region ID.
+   * @param hash The content hash returned by {@link #register(String, GeoRegionConstraint.Point[])}.
+   * @return true if the region is stored; otherwise, false.
+   */
+  public synchronized boolean isStored(String id, long hash) {
+    return mStored.contains(key(id, hash));
+  }
+
+  /**
+   * Get the compiled polygon of a region.
+   * @param id The region ID.
+   * @param hash The content hash of the region.
+   * @return The polygon, or null if not found or its content does not match
+   *          the hash.
+   */
+  public synchronized GeoPolygon get(String id, long hash) {
+    String key = key(id, hash);
+    GeoPolygon polygon = mPolygons.get(key);
+    if (polygon == null) {
+      polygon = read(fileOf(id, hash), id, hash);
+      if (polygon != null) {
+        mPolygons.put(key, polygon);
+        mStored.add(key);
+      }
+    }
+    return polygon;
+  }
+
+  /**
+   * Remove all versions of a region.  The calls still gated by this region
+   * will not be allowed.
+   * @param id The region ID.
+   */
+  public synchronized void remove(String id) {
+    String prefix = id + '#';
+    for (Iterator<Map.Entry<String, GeoPolygon>> it = mPolygons.entrySet().iterator();
+         it.hasNext(); ) {
+      if (it.next().getKey().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+    for (Iterator<String> it = mStored.iterator(); it.hasNext(); ) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+    File[] files = mDir.listFiles();
+    if (files != null) {
+      String name = prefixOf(id);
+      for (File file : files) {
+        if (file.getName().startsWith(name) && !file.getName().endsWith(REFS_SUFFIX) &&
+            id.equals(readId(file))) {
+          file.delete();
+          refsOf(file).delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Compute the content hash of a polygon.
+   * @param polygon A polygon.
+   * @return A non-zero 64-bit FNV-1a hash of its vertices.
+   */
+  static long hash(GeoPolygon polygon) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < polygon.size(); i++) {
+      hash = fnv(hash, Double.doubleToLongBits(polygon.getLatitude(i)));
+      hash = fnv(hash, Double.doubleToLongBits(polygon.getLongitude(i)));
+    }
+    return (hash == 0L) ? 1L : hash;
+  }
+
+  private static long fnv(long hash, long value) {
+    for (int i = 0; i < 8; i++) {
+      hash ^= (value >>> (i * 8)) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static String prefixOf(String id) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < id.length(); i++) {
+      hash = fnv(hash, id.charAt(i));
+    }
+    return Long.toHexString(hash) + '-';
+  }
+
+  private static String key(String id, long hash) {
+    return id + '#' + Long.toHexString(hash);
+  }
+
+  private File fileOf(String id, long hash) {
+    return new File(mDir, prefixOf(id) + Long.toHexString(hash));
+  }
+
+  private void store(final String id, final long hash, final GeoPolygon polygon,
+                     final boolean acquire) {
+    mWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        File file = fileOf(id, hash);
+        if (!file.exists() &&
+            (polygon == null || !write(file, id, hash, polygon))) {
+          return;
+        }
+        if (acquire) {
+          int refs = readRefs(file);
+          if (refs >= 0) {
+            writeRefs(file, refs + 1);
+          }
+        }
+        synchronized(GeoRegionRegistry.this) {
+          mStored.add(key(id, hash));
+        }
+      }
+    });
+  }
+
+  private File refsOf(File file) {
+    return new File(mDir, file.getName() + REFS_SUFFIX);
+  }
+
+  /*
+   * Read the number of calls referencing a stored region; 0 if none, or -1 if
+   * unreadable.
+   */
+  private int readRefs(File file) {
+    File refs = refsOf(file);
+    if (!refs.exists()) {
+      return 0;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(refs));
+      return in.readInt();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read "+refs, e);
+      return -1;
+    } finally {
+      close(in);
+    }
+  }
+
+  private void writeRefs(File file, int count) {
+    File refs = refsOf(file);
+    File tmp = new File(mDir, refs.getName() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new FileOutputStream(tmp));
+      out.writeInt(count);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(refs)) {
+        Log.e(TAG, "Unable to write "+refs);
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to write "+refs, e);
+      tmp.delete();
+    } finally {
+      close(out);
+    }
+  }
+
+  private boolean write(File file, String id, long hash, GeoPolygon polygon) {
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      Log.e(TAG, "Unable to create "+mDir);
+      return false;
+    }
+    File tmp = new File(mDir, file.getName() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(VERSION);
+      out.writeUTF(id);
+      out.writeLong(hash);
+      out.writeInt(polygon.size());
+      for (int i = 0; i < polygon.size(); i++) {
+        out.writeDouble(polygon.getLatitude(i));
+        out.writeDouble(polygon.getLongitude(i));
+      }
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file)) {
+        Log.e(TAG, "Unable to store region id="+id);
+        tmp.delete();
+        return false;
+      }
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to store region id="+id, e);
+      tmp.delete();
+      return false;
+    } finally {
+      close(out);
+    }
+  }
+
+  private GeoPolygon read(File file, String id, long hash) {
+    if (!file.exists()) {
+      Log.e(TAG, "Region not found: id="+id+", hash="+Long.toHexString(hash));
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != VERSION || !id.equals(in.readUTF()) ||
+          in.readLong() != hash) {
+        Log.e(TAG, "Region mismatched: id="+id+", file="+file);
+        return null;
+      }
+      int n = in.readInt();
+      double[] lats = new double[n];
+      double[] lngs = new double[n];
+      for (int i = 0; i < n; i++) {
+        lats[i] = in.readDouble();
+        lngs[i] = in.readDouble();
+      }
+      GeoPolygon polygon = new GeoPolygon(lats, lngs);
+      if (hash(polygon) != hash) {
+        Log.e(TAG, "Region content mismatched: id="+id+", file="+file);
+        return null;
+      }
+      return polygon;
+    } catch (Exception e) {
+      Log.e(TAG, "Unable to read region id="+id, e);
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  private static String readId(File file) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      in.readInt();
+      return in.readUTF();
+    } catch (IOException e) {
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  private static void close(Closeable stream) {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // Ignored.
+      }
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A recorded sequence of location fixes, read from a CSV or GPX trace, to
+ * replay the location updates without a device.  The fixes are kept in
+ * primitive arrays and this class does not depend on the Android framework,
+ * so a trace of a long drive can be replayed against the geo constraints on
+ * a plain JVM.
+ */
+public class GeoTrace {
+  private final static int INITIAL_CAPACITY = 256;
+
+  private double[] mLat = new double[INITIAL_CAPACITY];
+  private double[] mLng = new double[INITIAL_CAPACITY];
+  private float[] mAccuracy = new float[INITIAL_CAPACITY];
+  private long[] mTime = new long[INITIAL_CAPACITY];
+  private int mSize;
+
+  /**
+   * Constructor of an empty trace.
+   */
+  public GeoTrace() {
+  }
+
+  /**
+   * Read a CSV trace.  Each line has the latitude, longitude, and optionally
+   * the accuracy in meters and the time in milliseconds since the epoch.  The
+   * blank lines, the lines starting with '#' and a header line are skipped.
+   * @param reader The CSV text.
+   * @return The trace.
+   * @throws IOException The text cannot be read or is malformed.
+   */
+  public static GeoTrace readCsv(Reader reader) throws IOException {
+    GeoTrace trace = new GeoTrace();
+    BufferedReader in = new BufferedReader(reader);
+    String line;
+    int lineNo = 0;
+    while ((line = in.readLine()) != null) {
+      ++lineNo;
+      int len = line.length();
+      int start = 0;
+      while (start < len && line.charAt(start) <= ' ') {
+        start++;
+      }
+      if (start == len || line.charAt(start) == '#' ||
+          (trace.mSize == 0 && !isNumberStart(line.charAt(start)))) {
+        continue;
+      }
+      try {
+        int c1 = line.indexOf(',', start);
+        if (c1 < 0) {
+          throw new NumberFormatException("Missing longitude");
+        }
+        int c2 = line.indexOf(',', c1 + 1);
+        int c3 = (c2 < 0) ? -1 : line.indexOf(',', c2 + 1);
+        double lat = GeoFormat.parseDouble(line, start, c1);
+        double lng = GeoFormat.parseDouble(line, c1 + 1, (c2 < 0) ? len : c2);
+        float accuracy = (c2 < 0) ? 0 :
+            (float) GeoFormat.parseDouble(line, c2 + 1, (c3 < 0) ? len : c3);
+        long time = (c3 < 0) ? 0 : Long.parseLong(line.substring(c3 + 1).trim());
+        trace.add(lat, lng, accuracy, time);
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed line "+lineNo+": "+line);
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Read the track, route and way points of a GPX trace with their times.
+   * The accuracy is not recorded in GPX, so it is 0.
+   * @param reader The GPX text.
+   * @return The trace.
+   * @throws IOException The text cannot be read or is malformed.
+   */
+  public static GeoTrace readGpx(Reader reader) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    char[] buf = new char[8192];
+    int n;
+    while ((n = reader.read(buf)) > 0) {
+      sb.append(buf, 0, n);
+    }
+    String gpx = sb.toString();
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    GeoTrace trace = new GeoTrace();
+    int pos = 0;
+    while ((pos = nextPoint(gpx, pos)) >= 0) {
+      int tagEnd = gpx.indexOf('>', pos);
+      if (tagEnd < 0) {
+        throw new IOException("Unterminated point at "+pos);
+      }
+      String tag = gpx.substring(pos, tagEnd);
+      String name = tag.substring(1, tag.indexOf(' ') < 0 ? tag.length() : tag.indexOf(' '));
+      int end = tag.endsWith("/") ? tagEnd : gpx.indexOf("</"+name+">", tagEnd);
+      if (end < 0) {
+        throw new IOException("Unterminated point at "+pos);
+      }
+      try {
+        double lat = Double.parseDouble(attribute(tag, "lat"));
+        double lng = Double.parseDouble(attribute(tag, "lon"));
+        long time = 0;
+        int t = gpx.indexOf("<time>", tagEnd);
+        if (t >= 0 && t < end) {
+          time = parseTime(format, gpx.substring(t + 6, gpx.indexOf("</time>", t)).trim());
+        }
+        trace.add(lat, lng, 0, time);
+      } catch (RuntimeException e) {
+        throw new IOException("Malformed point at "+pos+": "+tag);
+      } catch (ParseException e) {
+        throw new IOException("Malformed time at "+pos+": "+e.getMessage());
+      }
+      pos = tagEnd;
+    }
+    return trace;
+  }
+
+  /**
+   * Append a fix.
+   * @param lat The latitude.
+   * @param lng The longitude.
+   * @param accuracy The accuracy in meters, or 0 if unknown.
+   * @param time The time in milliseconds since the epoch, or 0 if unknown.
+   */
+  public void add(double lat, double lng, float accuracy, long time) {
+    if (mSize == mLat.length) {
+      int capacity = mSize * 2;
+      mLat = Arrays.copyOf(mLat, capacity);
+      mLng = Arrays.copyOf(mLng, capacity);
+      mAccuracy = Arrays.copyOf(mAccuracy, capacity);
+      mTime = Arrays.copyOf(mTime, capacity);
+    }
+    mLat[mSize] = lat;
+    mLng[mSize] = lng;
+    mAccuracy[mSize] = accuracy;
+    mTime[mSize] = time;
+    ++mSize;
+  }
+
+  /**
+   * Get the number of fixes.
+   * @return The number of fixes.
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Get the latitude of a fix.
+   * @param index The index of the fix.
+   * @return The latitude.
+   */
+  public double getLatitude(int index) {
+    checkIndex(index);
+    return mLat[index];
+  }
+
+  /**
+   * Get the longitude of a fix.
+   * @param index The index of the fix.
+   * @return The longitude.
+   */
+  public double getLongitude(int index) {
+    checkIndex(index);
+    return mLng[index];
+  }
+
+  /**
+   * Get the accuracy of a fix.
+   * @param index The index of the fix.
+   * @return The accuracy in meters, or 0 if unknown.
+   */
+  public float getAccuracy(int index) {
+    checkIndex(index);
+    return mAccuracy[index];
+  }
+
+  /**
+   * Get the time of a fix.
+   * @param index The index of the fix.
+   * @return The time in milliseconds since the epoch, or 0 if unknown.
+   */
+  public long getTime(int index) {
+    checkIndex(index);
+    return mTime[index];
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= mSize) {
+      throw new IndexOutOfBoundsException("index="+index+", size="+mSize);
+    }
+  }
+
+  private static boolean isNumberStart(char c) {
+    return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+  }
+
+  /*
+   * Find the next <trkpt>, <rtept> or <wpt> element.
+   */
+  private static int nextPoint(String gpx, int from) {
+    int next = -1;
+    String[] names = { "<trkpt", "<rtept", "<wpt" };
+    for (String name : names) {
+      int i = gpx.indexOf(name, from);
+      if (i >= 0 && (next < 0 || i < next)) {
+        next = i;
+      }
+    }
+    return next;
+  }
+
+  private static String attribute(String tag, String name) {
+    int i = tag.indexOf(' '+name+'=');
+    if (i < 0) {
+      throw new IllegalArgumentException("Missing attribute: "+name);
+    }
+    i += name.length() + 2;
+    char quote = tag.charAt(i);
+    return tag.substring(i + 1, tag.indexOf(quote, i + 1));
+  }
+
+  /*
+   * Parse an ISO 8601 time, e.g. 2014-03-01T10:15:30.250Z or
+   * 2014-03-01T10:15:30+01:00.
+   */
+  private static long parseTime(SimpleDateFormat format, String time)
+      throws ParseException {
+    if (time.length() < 19) {
+      throw new ParseException(time, 0);
+    }
+    long millis = format.parse(time.substring(0, 19)).getTime();
+    int i = 19;
+    if (i < time.length() && time.charAt(i) == '.') {
+      int start = ++i;
+      while (i < time.length() && Character.isDigit(time.charAt(i))) {
+        i++;
+      }
+      String fraction = (time.substring(start, i)+"00").substring(0, 3);
+      millis += Integer.parseInt(fraction);
+    }
+    if (i < time.length() && (time.charAt(i) == '+' || time.charAt(i) == '-')) {
+      int sign = (time.charAt(i) == '+') ? -1 : 1;
+      int hours = Integer.parseInt(time.substring(i + 1, i + 3));
+      int minutes = Integer.parseInt(time.substring(time.length() - 2));
+      millis += sign * (hours * 60L + minutes) * 60 * 1000;
+    }
+    return millis;
+  }
+}
@@ -3,8 +3,6 @@
  */
 package com.magnet.android.mms.async.constraint;
 
-import java.io.IOException;
-import java.util.List;
 import java.util.Locale;
 
 import com.magnet.android.mms.utils.logger.Log;
@@ -14,7 +12,6 @@ import com.magnet.android.mms.utils.logger.Log;
 import android.content.Context;
 import android.location.Address;
 import android.location.Criteria;
-import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -28,26 +25,14 @@ public class GeoUtil {
     private final static double EARTH_RADIUS_IN_METERS = 6371 * 1000;
     
     /**
-     * Get the first found longitude and latitude of a postal address.
+     * Get the first found address with the longitude and latitude of a postal
+     * address.  The lookups are cached by {@link GeocodeCache}.
      * @param context
      * @param postal A postal address.
-     * @return A geo-location, or null if IOException occurred.
+     * @return A geo-location, or null if not found or the lookup failed.
      */
     public static Address getGeoFromPostal( Context context, String postal ) {
-        Geocoder coder = new Geocoder(context);
-        List<Address> address;
-    
-        try {
-            address = coder.getFromLocationName(postal, 1);
-            if (address == null || address.isEmpty()) {
-                return null;
-            }
-            Address location = address.get(0);
-            return location;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return GeocodeCache.getInstance(context).lookupAddress(postal);
     }
     
     /**
@@ -77,17 +62,21 @@ public class GeoUtil {
     }
     
     /**
-     * Convert a "latitude, longitude" string to a geo-location.
+     * Convert a "latitude, longitude" string to a geo-location.  Use
+     * {@link GeoFormat#parse(CharSequence, int, int, GeoFormat.LatLng)} to
+     * parse without allocating an Address.
      * @param geoLocation
      * @return An Address with latitude and longitude.
+     * @throws NumberFormatException Not a "latitude, longitude" string.
      */
     public static Address parseGeoLocation( String geoLocation ) {
       if (geoLocation == null)
         return null;
-      String[] tokens = geoLocation.split(",");
+      GeoFormat.LatLng latLng = GeoFormat.parse(geoLocation, 0,
+          geoLocation.length(), new GeoFormat.LatLng());
       Address location = new Address(null);
-      location.setLatitude(Double.parseDouble(tokens[0].trim()));
-      location.setLongitude(Double.parseDouble(tokens[1].trim()));
+      location.setLatitude(latLng.getLatitude());
+      location.setLongitude(latLng.getLongitude());
       return location;
     }
     
@@ -112,6 +101,60 @@ public class GeoUtil {
       return (float) dist;
   }
   
+  /**
+   * Distances in meters from one origin to many targets using the "haversine"
+   * formula.  The terms of the origin are computed once, and the results are
+   * identical to {@link #distFrom(double, double, double, double)}.
+   * @param lat1 latitude of the origin
+   * @param lng1 longitude of the origin
+   * @param lats latitudes of the targets
+   * @param lngs longitudes of the targets
+   * @param dists an array receiving the distances in meters
+   * @param count number of targets
+   */
+  public static void distFrom(double lat1, double lng1, double[] lats,
+                              double[] lngs, float[] dists, int count) {
+    double cosLat1 = Math.cos(Math.toRadians(lat1));
+    for (int i = 0; i < count; i++) {
+      double sinLat = Math.sin(Math.toRadians(lats[i]-lat1)/2);
+      double sinLng = Math.sin(Math.toRadians(lngs[i]-lng1)/2);
+      double a = sinLat * sinLat +
+                  sinLng * sinLng * cosLat1 * Math.cos(Math.toRadians(lats[i]));
+      double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
+      dists[i] = (float) (EARTH_RADIUS_IN_METERS * c);
+    }
+  }
+  
+  /**
+   * Approximate distances in meters from one origin to many targets using the
+   * equirectangular projection at the latitude of the origin.  It only takes
+   * one square root per target.  The relative error grows with the distance
+   * and the latitude, so use {@link #distFrom(double, double, double, double)}
+   * for long distances or near the poles.
+   * @param lat1 latitude of the origin
+   * @param lng1 longitude of the origin
+   * @param lats latitudes of the targets
+   * @param lngs longitudes of the targets
+   * @param dists an array receiving the distances in meters
+   * @param count number of targets
+   */
+  public static void distFromApprox(double lat1, double lng1, double[] lats,
+                                    double[] lngs, float[] dists, int count) {
+    double scaleLat = Math.toRadians(1) * EARTH_RADIUS_IN_METERS;
+    double scaleLng = scaleLat * Math.cos(Math.toRadians(lat1));
+    for (int i = 0; i < count; i++) {
+      double dLng = lngs[i] - lng1;
+      if (dLng > 180) {
+        dLng -= 360;
+      } else if (dLng < -180) {
+        dLng += 360;
+      }
+      double x = dLng * scaleLng;
+      double y = (lats[i] - lat1) * scaleLat;
+      dists[i] = (float) Math.sqrt(x * x + y * y);
+    }
+  }
+  
   /**
    * Check if the location is within the circle of a geo-fence.
    * @param loc A location to be tested.
@@ -138,6 +181,18 @@ public class GeoUtil {
     return (dist <= radius);
   }
   
+  /**
+   * Check if the location is within a precomputed geo-fence circle.  It gives
+   * the same result as {@link #inCircle(Location, Location, float)} but skips
+   * the trigonometry for the locations clearly inside or outside the circle.
+   * @param loc A location to be tested.
+   * @param fence A geo-fence circle.
+   * @return true if within the geo-fence circle; otherwise, false.
+   */
+  public static boolean inCircle(Location loc, GeoCircle fence) {
+    return fence.contains(loc.getLatitude(), loc.getLongitude());
+  }
+  
   /**
    * Get the last known location based on the passive provider.
    * @param context
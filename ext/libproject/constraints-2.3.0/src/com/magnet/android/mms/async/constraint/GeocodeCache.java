@@ -0,0 +1,691 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+
+/**
+ * A bounded, persistent cache of the geocoding lookups.  The entries are
+ * evicted in the least recently used order and expire after a TTL; the
+ * lookups without any result are cached with a shorter TTL, while the failed
+ * lookups are not cached.  Concurrent lookups of the same query are coalesced
+ * into one call to the {@link Resolver}, and the entries are written to a
+ * {@link Store} so they survive process restarts.  The writes are batched and
+ * run on a background thread shortly after the cache changes.
+ */
+public class GeocodeCache {
+  /**
+   * The default maximum number of entries.
+   */
+  public final static int DEFAULT_MAX_ENTRIES = 500;
+  /**
+   * The default TTL in milliseconds of the resolved entries (30 days.)
+   */
+  public final static long DEFAULT_TTL = 30 * 24 * 3600 * 1000L;
+  /**
+   * The default TTL in milliseconds of the entries without result (1 hour.)
+   */
+  public final static long DEFAULT_NEGATIVE_TTL = 3600 * 1000L;
+
+  private final static String TAG = "GeocodeCache";
+  private final static String FILE_NAME = "magnet_geocode.dat";
+  private final static long SAVE_DELAY = 2000L;
+  private static GeocodeCache sInstance;
+  private static ScheduledExecutorService sSaver;
+
+  private final Resolver mResolver;
+  private final Store mStore;
+  private final int mMaxEntries;
+  private final long mTtl;
+  private final long mNegativeTtl;
+  private final Object mLoadLock = new Object();
+  private final Object mSaveLock = new Object();
+  private final LinkedHashMap<String, Entry> mEntries;
+  private final HashMap<String, FutureTask<Entry>> mInflight =
+      new HashMap<String, FutureTask<Entry>>();
+  private boolean mLoaded;
+  private boolean mSaveScheduled;
+  private long mHits;
+  private long mNegativeHits;
+  private long mMisses;
+  private long mCoalesced;
+
+  private final Runnable mSaveTask = new Runnable() {
+    @Override
+    public void run() {
+      synchronized(GeocodeCache.this) {
+        mSaveScheduled = false;
+      }
+      save();
+    }
+  };
+
+  /**
+   * A backend resolving a query to an address.
+   */
+  public interface Resolver {
+    /**
+     * Resolve a query.
+     * @param query A postal address or a place name as given by the caller.
+     * @return The address with a location, or null if there is no result.
+     * @throws IOException The lookup failed; the result is not cached.
+     */
+    public Address resolve(String query) throws IOException;
+  }
+
+  /**
+   * A backend persisting the cache entries.
+   */
+  public interface Store {
+    /**
+     * Load all entries.
+     * @return The entries from the least recently used to the most recently
+     *          used, or an empty list.
+     * @throws IOException
+     */
+    public List<Entry> load() throws IOException;
+
+    /**
+     * Replace all entries.
+     * @param entries The entries from the least recently used to the most
+     *          recently used.
+     * @throws IOException
+     */
+    public void save(List<Entry> entries) throws IOException;
+  }
+
+  /**
+   * A cache entry.
+   */
+  public static final class Entry {
+    private final String mQuery;
+    private final Address mAddress;
+    private final long mExpires;
+
+    /**
+     * Constructor.
+     * @param query The normalized query.
+     * @param address The address, or null if there is no result.
+     * @param expires The expiration time in milliseconds since epoch.
+     */
+    public Entry(String query, Address address, long expires) {
+      mQuery = query;
+      mAddress = address;
+      mExpires = expires;
+    }
+
+    /**
+     * Get the normalized query.
+     * @return The query.
+     */
+    public String getQuery() {
+      return mQuery;
+    }
+
+    /**
+     * Get the address.  It must not be modified.
+     * @return The address, or null if there is no result.
+     */
+    public Address getAddress() {
+      return mAddress;
+    }
+
+    /**
+     * Get the expiration time.
+     * @return The time in milliseconds since epoch.
+     */
+    public long getExpires() {
+      return mExpires;
+    }
+  }
+
+  /**
+   * A resolver using the Android {@link Geocoder}.
+   */
+  public static class GeocoderResolver implements Resolver {
+    private final Context mContext;
+
+    /**
+     * Constructor.
+     * @param context The application context.
+     */
+    public GeocoderResolver(Context context) {
+      mContext = context;
+    }
+
+    @Override
+    public Address resolve(String query) throws IOException {
+      List<Address> address = new Geocoder(mContext).getFromLocationName(query, 1);
+      if (address == null || address.isEmpty()) {
+        return null;
+      }
+      return address.get(0);
+    }
+  }
+
+  /**
+   * A store in a private file.  The file is replaced atomically on save.  The
+   * address fields are stored except the extras.
+   */
+  public static class FileStore implements Store {
+    private final static int VERSION = 2;
+    private final File mFile;
+
+    /**
+     * Constructor.
+     * @param file The file to store the entries.
+     */
+    public FileStore(File file) {
+      mFile = file;
+    }
+
+    @Override
+    public List<Entry> load() throws IOException {
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      if (!mFile.exists()) {
+        return entries;
+      }
+      DataInputStream in = null;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        if (in.readInt() != VERSION) {
+          Log.w(TAG, "load() ignored unknown version; file="+mFile);
+          return entries;
+        }
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+          String query = in.readUTF();
+          Address address = in.readBoolean() ? readAddress(in) : null;
+          entries.add(new Entry(query, address, in.readLong()));
+        }
+        return entries;
+      } finally {
+        close(in);
+      }
+    }
+
+    @Override
+    public void save(List<Entry> entries) throws IOException {
+      File tmp = new File(mFile.getPath() + ".tmp");
+      DataOutputStream out = null;
+      try {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+          out.writeUTF(entry.mQuery);
+          out.writeBoolean(entry.mAddress != null);
+          if (entry.mAddress != null) {
+            writeAddress(out, entry.mAddress);
+          }
+          out.writeLong(entry.mExpires);
+        }
+        out.close();
+        out = null;
+        if (!tmp.renameTo(mFile)) {
+          throw new IOException("Unable to rename "+tmp+" to "+mFile);
+        }
+      } finally {
+        close(out);
+        tmp.delete();
+      }
+    }
+
+    private static Address readAddress(DataInputStream in) throws IOException {
+      Locale locale = new Locale(in.readUTF(), in.readUTF(), in.readUTF());
+      Address address = new Address(locale);
+      int lines = in.readInt();
+      for (int i = 0; i < lines; i++) {
+        address.setAddressLine(i, readString(in));
+      }
+      address.setFeatureName(readString(in));
+      address.setAdminArea(readString(in));
+      address.setSubAdminArea(readString(in));
+      address.setLocality(readString(in));
+      address.setSubLocality(readString(in));
+      address.setThoroughfare(readString(in));
+      address.setSubThoroughfare(readString(in));
+      address.setPremises(readString(in));
+      address.setPostalCode(readString(in));
+      address.setCountryCode(readString(in));
+      address.setCountryName(readString(in));
+      address.setPhone(readString(in));
+      address.setUrl(readString(in));
+      if (in.readBoolean()) {
+        address.setLatitude(in.readDouble());
+      }
+      if (in.readBoolean()) {
+        address.setLongitude(in.readDouble());
+      }
+      return address;
+    }
+
+    private static void writeAddress(DataOutputStream out, Address address)
+        throws IOException {
+      Locale locale = address.getLocale();
+      out.writeUTF((locale == null) ? "" : locale.getLanguage());
+      out.writeUTF((locale == null) ? "" : locale.getCountry());
+      out.writeUTF((locale == null) ? "" : locale.getVariant());
+      int lines = address.getMaxAddressLineIndex() + 1;
+      out.writeInt(lines);
+      for (int i = 0; i < lines; i++) {
+        writeString(out, address.getAddressLine(i));
+      }
+      writeString(out, address.getFeatureName());
+      writeString(out, address.getAdminArea());
+      writeString(out, address.getSubAdminArea());
+      writeString(out, address.getLocality());
+      writeString(out, address.getSubLocality());
+      writeString(out, address.getThoroughfare());
+      writeString(out, address.getSubThoroughfare());
+      writeString(out, address.getPremises());
+      writeString(out, address.getPostalCode());
+      writeString(out, address.getCountryCode());
+      writeString(out, address.getCountryName());
+      writeString(out, address.getPhone());
+      writeString(out, address.getUrl());
+      out.writeBoolean(address.hasLatitude());
+      if (address.hasLatitude()) {
+        out.writeDouble(address.getLatitude());
+      }
+      out.writeBoolean(address.hasLongitude());
+      if (address.hasLongitude()) {
+        out.writeDouble(address.getLongitude());
+      }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+        throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null) {
+        out.writeUTF(value);
+      }
+    }
+  }
+
+  /**
+   * Get the singleton of this cache using the Android {@link Geocoder} and a
+   * file in the application cache directory.
+   * @param context The application context.
+   * @return The cache.
+   */
+  public static synchronized GeocodeCache getInstance(Context context) {
+    if (sInstance == null) {
+      Context appContext = context.getApplicationContext();
+      sInstance = new GeocodeCache(new GeocoderResolver(appContext),
+          new FileStore(new File(appContext.getCacheDir(), FILE_NAME)),
+          DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Constructor.
+   * @param resolver The backend resolving the queries.
+   * @param store The backend persisting the entries, or null.
+   * @param maxEntries The maximum number of entries.
+   * @param ttl The TTL in milliseconds of the resolved entries.
+   * @param negativeTtl The TTL in milliseconds of the entries without result.
+   */
+  public GeocodeCache(Resolver resolver, Store store, final int maxEntries,
+                       long ttl, long negativeTtl) {
+    mResolver = resolver;
+    mStore = store;
+    mMaxEntries = maxEntries;
+    mTtl = ttl;
+    mNegativeTtl = negativeTtl;
+    mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, GeocodeCache.Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Look up the location of a query.  It blocks if the query is not cached; it
+   * must not be called from the main thread.
+   * @param query A postal address or a place name.
+   * @return The latitude and longitude, or null if there is no result or the
+   *          lookup failed.
+   */
+  public double[] lookup(String query) {
+    Address address = lookupAddress(query);
+    if (address == null || !address.hasLatitude() || !address.hasLongitude()) {
+      return null;
+    }
+    return new double[] { address.getLatitude(), address.getLongitude() };
+  }
+
+  /**
+   * Look up the address of a query.  It blocks if the query is not cached; it
+   * must not be called from the main thread.
+   * @param query A postal address or a place name.
+   * @return A copy of the address, or null if there is no result or the lookup
+   *          failed.
+   */
+  public Address lookupAddress(final String query) {
+    final String key = normalize(query);
+    FutureTask<Entry> task;
+    boolean owner = false;
+    load();
+    synchronized(this) {
+      Entry entry = mEntries.get(key);
+      if (entry != null) {
+        if (entry.mExpires > now()) {
+          if (entry.mAddress != null) {
+            ++mHits;
+          } else {
+            ++mNegativeHits;
+          }
+          return copy(entry.mAddress);
+        }
+        mEntries.remove(key);
+      }
+      task = mInflight.get(key);
+      if (task == null) {
+        ++mMisses;
+        task = new FutureTask<Entry>(new Callable<Entry>() {
+          @Override
+          public Entry call() throws IOException {
+            return resolve(query, key);
+          }
+        });
+        mInflight.put(key, task);
+        owner = true;
+      } else {
+        ++mCoalesced;
+      }
+    }
+    try {
+      if (owner) {
+        task.run();
+      }
+      Entry entry = task.get();
+      return copy(entry.mAddress);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      if (owner) {
+        Log.e(TAG, "lookup() failed; query="+query, e.getCause());
+      }
+      return null;
+    } finally {
+      if (owner) {
+        synchronized(this) {
+          mInflight.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove a query from this cache.
+   * @param query A postal address or a place name.
+   */
+  public void invalidate(String query) {
+    load();
+    synchronized(this) {
+      if (mEntries.remove(normalize(query)) == null) {
+        return;
+      }
+    }
+    scheduleSave();
+  }
+
+  /**
+   * Remove all entries from this cache.
+   */
+  public void clear() {
+    synchronized(this) {
+      mLoaded = true;
+      mEntries.clear();
+    }
+    scheduleSave();
+  }
+
+  /**
+   * Write the pending changes to the store now.  It blocks; it must not be
+   * called from the main thread.
+   */
+  public void flush() {
+    save();
+  }
+
+  /**
+   * Get the number of entries including the expired ones.
+   * @return The number of entries.
+   */
+  public int size() {
+    load();
+    synchronized(this) {
+      return mEntries.size();
+    }
+  }
+
+  /**
+   * Get the number of lookups served by the resolved entries.
+   * @return The number of hits.
+   */
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  /**
+   * Get the number of lookups served by the entries without result.
+   * @return The number of negative hits.
+   */
+  public synchronized long getNegativeHitCount() {
+    return mNegativeHits;
+  }
+
+  /**
+   * Get the number of lookups sent to the resolver.
+   * @return The number of misses.
+   */
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  /**
+   * Get the number of lookups waiting for the same query in progress.
+   * @return The number of coalesced lookups.
+   */
+  public synchronized long getCoalescedCount() {
+    return mCoalesced;
+  }
+
+  /**
+   * Get the current time.
+   * @return The time in milliseconds since epoch.
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /*
+   * Resolve the original query, and cache the result by the normalized key.
+   */
+  private Entry resolve(String query, String key) throws IOException {
+    Address address = mResolver.resolve(query);
+    Entry entry = new Entry(key, address, now() + ((address != null) ? mTtl : mNegativeTtl));
+    synchronized(this) {
+      mEntries.put(key, entry);
+    }
+    scheduleSave();
+    return entry;
+  }
+
+  /*
+   * Read the store once without holding the cache lock, so the lookups of the
+   * other threads are not blocked by the file I/O, then publish the entries
+   * under it unless clear() has been called meanwhile.
+   */
+  private void load() {
+    synchronized(mLoadLock) {
+      synchronized(this) {
+        if (mLoaded) {
+          return;
+        }
+      }
+      List<Entry> entries = null;
+      if (mStore != null) {
+        try {
+          entries = mStore.load();
+        } catch (IOException e) {
+          Log.e(TAG, "load() failed", e);
+        }
+      }
+      synchronized(this) {
+        if (mLoaded) {
+          return;
+        }
+        mLoaded = true;
+        if (entries != null) {
+          long now = now();
+          for (Entry entry : entries) {
+            if (entry.mExpires > now) {
+              mEntries.put(entry.mQuery, entry);
+            }
+          }
+          if (Log.isLoggable(Log.DEBUG)) {
+            Log.d(TAG, "load() entries="+mEntries.size());
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   * Batch the changes within a short delay into one write on the background
+   * thread.
+   */
+  private void scheduleSave() {
+    if (mStore == null) {
+      return;
+    }
+    synchronized(this) {
+      if (mSaveScheduled) {
+        return;
+      }
+      mSaveScheduled = true;
+    }
+    getSaver().schedule(mSaveTask, SAVE_DELAY, TimeUnit.MILLISECONDS);
+  }
+
+  private static synchronized ScheduledExecutorService getSaver() {
+    if (sSaver == null) {
+      sSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, TAG);
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+    }
+    return sSaver;
+  }
+
+  private void save() {
+    if (mStore == null) {
+      return;
+    }
+    synchronized(mSaveLock) {
+      List<Entry> entries;
+      synchronized(this) {
+        entries = new ArrayList<Entry>(mEntries.values());
+      }
+      try {
+        mStore.save(entries);
+      } catch (IOException e) {
+        Log.e(TAG, "save() failed", e);
+      }
+    }
+  }
+
+  /*
+   * Copy an address so the callers cannot modify the cached one.
+   */
+  private static Address copy(Address src) {
+    if (src == null) {
+      return null;
+    }
+    Locale locale = src.getLocale();
+    Address dst = new Address((locale == null) ? Locale.getDefault() : locale);
+    for (int i = 0; i <= src.getMaxAddressLineIndex(); i++) {
+      dst.setAddressLine(i, src.getAddressLine(i));
+    }
+    dst.setFeatureName(src.getFeatureName());
+    dst.setAdminArea(src.getAdminArea());
+    dst.setSubAdminArea(src.getSubAdminArea());
+    dst.setLocality(src.getLocality());
+    dst.setSubLocality(src.getSubLocality());
+    dst.setThoroughfare(src.getThoroughfare());
+    dst.setSubThoroughfare(src.getSubThoroughfare());
+    dst.setPremises(src.getPremises());
+    dst.setPostalCode(src.getPostalCode());
+    dst.setCountryCode(src.getCountryCode());
+    dst.setCountryName(src.getCountryName());
+    dst.setPhone(src.getPhone());
+    dst.setUrl(src.getUrl());
+    if (src.hasLatitude()) {
+      dst.setLatitude(src.getLatitude());
+    }
+    if (src.hasLongitude()) {
+      dst.setLongitude(src.getLongitude());
+    }
+    return dst;
+  }
+
+  private static String normalize(String query) {
+    return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+  }
+
+  private static void close(Closeable stream) {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // Ignored.
+      }
+    }
+  }
+}
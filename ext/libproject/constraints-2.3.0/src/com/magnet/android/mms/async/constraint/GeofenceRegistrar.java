@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.google.android.gms.location.Geofence;
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A registrar coalescing the geo-fence additions and removals into batches.
+ * The operations are collected for a short window, or until the batch is
+ * full, and each batch is submitted to {@link LocationReceiver} as one
+ * removal and one addition.  A geo-fence added and removed within the same
+ * batch is never submitted.  The registrar also enforces the limit of active
+ * geo-fences per application imposed by Google Play Service.
+ */
+public class GeofenceRegistrar {
+  /**
+   * The maximum number of active geo-fences per application.
+   */
+  public final static int MAX_ACTIVE_GEOFENCES = 100;
+  /**
+   * The default window in milliseconds to collect the operations.
+   */
+  public final static long DEFAULT_WINDOW = 500L;
+  /**
+   * The default number of operations to submit a batch immediately.
+   */
+  public final static int DEFAULT_BATCH_SIZE = 50;
+
+  private final static String TAG = "GeofenceRegistrar";
+  private static GeofenceRegistrar sInstance;
+
+  private final Context mContext;
+  private final Handler mHandler;
+  private final LinkedHashMap<String, Geofence> mPendingAdds = new LinkedHashMap<String, Geofence>();
+  private final LinkedHashSet<String> mPendingRemoves = new LinkedHashSet<String>();
+  private final HashSet<String> mActive = new HashSet<String>();
+  private long mWindow = DEFAULT_WINDOW;
+  private int mBatchSize = DEFAULT_BATCH_SIZE;
+  private boolean mScheduled;
+  private long mRequests;
+  private long mSubmits;
+  private long mBatches;
+  private int mLargestBatch;
+  private long mRejected;
+
+  private final Runnable mFlusher = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * Get the singleton of this registrar.
+   * @param context The application context.
+   * @return The registrar.
+   */
+  public static synchronized GeofenceRegistrar getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new GeofenceRegistrar(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  private GeofenceRegistrar(Context context) {
+    mContext = context;
+    mHandler = new Handler(Looper.getMainLooper());
+  }
+
+  /**
+   * Set the window to collect the operations into a batch.
+   * @param millis The window in milliseconds.
+   */
+  public synchronized void setWindow(long millis) {
+    mWindow = millis;
+  }
+
+  /**
+   * Set the number of pending operations which submits a batch immediately.
+   * @param size The batch size, up to {@link #MAX_ACTIVE_GEOFENCES}.
+   */
+  public synchronized void setBatchSize(int size) {
+    mBatchSize = Math.max(1, Math.min(size, MAX_ACTIVE_GEOFENCES));
+  }
+
+  /**
+   * Queue a geo-fence to be added.  A pending removal of the same ID is
+   * superseded.
+   * @param fence A geo-fence with an ID.
+   * @return false if the geo-fence was rejected because of the limit of active
+   *          geo-fences; otherwise, true.
+   */
+  public boolean add(Geofence fence) {
+    String id = fence.getRequestId();
+    synchronized(this) {
+      ++mRequests;
+      mPendingRemoves.remove(id);
+      if (!mActive.contains(id) && !mPendingAdds.containsKey(id) &&
+          mActive.size() + mPendingAdds.size() >= MAX_ACTIVE_GEOFENCES) {
+        ++mRejected;
+        Log.w(TAG, "add() too many geo-fences; id="+id+" is evaluated on "+
+              "location updates only");
+        return false;
+      }
+      mPendingAdds.put(id, fence);
+      schedule();
+    }
+    return true;
+  }
+
+  /**
+   * Queue a geo-fence to be removed.  If the geo-fence has not been submitted
+   * yet, the pending addition is cancelled instead.
+   * @param id The ID of a geo-fence.
+   */
+  public void remove(String id) {
+    synchronized(this) {
+      ++mRequests;
+      if (mPendingAdds.remove(id) != null && !mActive.contains(id)) {
+        return;
+      }
+      mPendingRemoves.add(id);
+      schedule();
+    }
+  }
+
+  /**
+   * Submit all pending operations now.
+   */
+  public void flush() {
+    List<String> removes;
+    List<Geofence> adds;
+    synchronized(this) {
+      mScheduled = false;
+      mHandler.removeCallbacks(mFlusher);
+      if (mPendingRemoves.isEmpty() && mPendingAdds.isEmpty()) {
+        return;
+      }
+      removes = new ArrayList<String>(mPendingRemoves);
+      adds = new ArrayList<Geofence>(mPendingAdds.values());
+      mActive.removeAll(mPendingRemoves);
+      mActive.addAll(mPendingAdds.keySet());
+      mPendingRemoves.clear();
+      mPendingAdds.clear();
+      mBatches++;
+      mSubmits += (removes.isEmpty() ? 0 : 1) + (adds.isEmpty() ? 0 : 1);
+      mLargestBatch = Math.max(mLargestBatch, removes.size() + adds.size());
+    }
+    if (Log.isLoggable(Log.DEBUG)) {
+      Log.d(TAG, "flush() removes="+removes.size()+", adds="+adds.size());
+    }
+    // Remove first to make room for the additions.
+    if (!removes.isEmpty()) {
+      LocationReceiver.removeGeofences(mContext, removes);
+    }
+    if (!adds.isEmpty()) {
+      LocationReceiver.addGeofences(mContext, adds);
+    }
+  }
+
+  /**
+   * Get the number of add and remove operations requested.
+   * @return The number of operations.
+   */
+  public synchronized long getRequestCount() {
+    return mRequests;
+  }
+
+  /**
+   * Get the number of calls submitted to Google Play Service.
+   * @return The number of calls.
+   */
+  public synchronized long getSubmitCount() {
+    return mSubmits;
+  }
+
+  /**
+   * Get the number of calls to Google Play Service saved by batching.
+   * @return The number of calls saved.
+   */
+  public synchronized long getSavedCount() {
+    return mRequests - mRejected - mSubmits;
+  }
+
+  /**
+   * Get the number of batches submitted.
+   * @return The number of batches.
+   */
+  public synchronized long getBatchCount() {
+    return mBatches;
+  }
+
+  /**
+   * Get the number of operations in the largest batch.
+   * @return The size of the largest batch.
+   */
+  public synchronized int getLargestBatch() {
+    return mLargestBatch;
+  }
+
+  /**
+   * Get the number of geo-fences rejected because of the limit.
+   * @return The number of rejected geo-fences.
+   */
+  public synchronized long getRejectedCount() {
+    return mRejected;
+  }
+
+  private void schedule() {
+    if (mPendingAdds.size() + mPendingRemoves.size() >= mBatchSize) {
+      mHandler.removeCallbacks(mFlusher);
+      mScheduled = true;
+      mHandler.post(mFlusher);
+    } else if (!mScheduled) {
+      mScheduled = true;
+      mHandler.postDelayed(mFlusher, mWindow);
+    }
+  }
+}
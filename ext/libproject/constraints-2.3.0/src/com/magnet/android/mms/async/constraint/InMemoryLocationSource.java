@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+import android.location.Location;
+
+/**
+ * A location source returning a location set by the application, e.g. to
+ * test the location based constraints or to replay a {@link GeoTrace}.
+ */
+public class InMemoryLocationSource implements LocationSource {
+  private final int mCost;
+  private volatile Location mLocation;
+
+  /**
+   * Constructor with the {@link Cost#CACHED} cost.
+   */
+  public InMemoryLocationSource() {
+    this(Cost.CACHED);
+  }
+
+  /**
+   * Constructor with a cost.
+   * @param cost The cost relative to the other sources.
+   */
+  public InMemoryLocationSource(int cost) {
+    mCost = cost;
+  }
+
+  /**
+   * Set the location to be returned.  The shared {@link LocationSnapshot} is
+   * invalidated so the constraints read the new location.
+   * @param location A location, or null.
+   */
+  public void setLocation(Location location) {
+    mLocation = location;
+    LocationSnapshot.invalidate();
+  }
+
+  /**
+   * Set a fix of a trace as the location to be returned.
+   * @param trace A trace.
+   * @param index The index of the fix.
+   */
+  public void setLocation(GeoTrace trace, int index) {
+    Location location = new Location("trace");
+    location.setLatitude(trace.getLatitude(index));
+    location.setLongitude(trace.getLongitude(index));
+    if (trace.getAccuracy(index) > 0) {
+      location.setAccuracy(trace.getAccuracy(index));
+    }
+    location.setTime(trace.getTime(index));
+    setLocation(location);
+  }
+
+  @Override
+  public Location getLocation(Context appContext) {
+    return mLocation;
+  }
+
+  @Override
+  public int getCost() {
+    return mCost;
+  }
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import com.google.android.gms.location.LocationRequest;
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * A scheduler of the location update QoS for all pending geo constraints.
+ * The QoS is chosen from a few tiers by the distance from the last fix to the
+ * nearest fence or region boundary, assuming the device cannot travel faster
+ * than {@link #MAX_SPEED}: far from every boundary, the updates back off to a
+ * coarse and low-power interval; near a boundary, they tighten to follow the
+ * smallest fence.  A large number of pending calls tightens the QoS by one
+ * tier.  The location request is only replaced when the tier changes, and it
+ * is removed when there are no pending geo constraints.  The reschedules
+ * within a short window are coalesced and computed on a background thread,
+ * so queueing many constraints does not recompute the boundary distance for
+ * each of them.
+ */
+public class LocationQosScheduler {
+  /**
+   * No pending geo constraints; location updates are not requested.
+   */
+  public final static int TIER_NONE = -1;
+  /**
+   * Near a boundary.
+   */
+  public final static int TIER_NEAR = 0;
+  /**
+   * Approaching a boundary, or the location is unknown.
+   */
+  public final static int TIER_APPROACH = 1;
+  /**
+   * Far from all boundaries.
+   */
+  public final static int TIER_FAR = 2;
+  /**
+   * Very far from all boundaries.
+   */
+  public final static int TIER_IDLE = 3;
+  /**
+   * The assumed maximum speed of the device in meters per second.
+   */
+  public final static float MAX_SPEED = 30.0f;
+  /**
+   * The number of pending geo constraints that tightens the QoS by one tier.
+   */
+  public final static int BUSY_THRESHOLD = 20;
+  /**
+   * The window in milliseconds to coalesce the reschedules.
+   */
+  public final static long COALESCE_WINDOW = 500L;
+
+  private final static String TAG = "LocationQosScheduler";
+  private final static long[] INTERVALS = {
+    15 * 1000L, 60 * 1000L, 5 * 60 * 1000L, 15 * 60 * 1000L };
+  private final static float[] DISPLACEMENTS = { 5.0f, 10.0f, 250.0f, 1000.0f };
+  private final static int[] PRIORITIES = {
+    LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+    LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+    LocationRequest.PRIORITY_LOW_POWER,
+    LocationRequest.PRIORITY_LOW_POWER };
+  private static LocationQosScheduler sInstance;
+
+  private final Context mContext;
+  private final Handler mHandler;
+  private final HashMap<String, Region> mRegions = new HashMap<String, Region>();
+  private final TreeMap<Float, Integer> mMargins = new TreeMap<Float, Integer>();
+  private int mTier = TIER_NONE;
+  private boolean mScheduled;
+  private Location mPendingFix;
+  private long mApplied;
+  private long mSkipped;
+  private long mCoalesced;
+  private long mVersion;
+
+  private final Runnable mReschedule = new Runnable() {
+    @Override
+    public void run() {
+      Location loc;
+      synchronized(LocationQosScheduler.this) {
+        mScheduled = false;
+        loc = mPendingFix;
+        mPendingFix = null;
+      }
+      if (loc == null) {
+        loc = LocationSnapshot.get(mContext).getLocation();
+      }
+      apply(loc);
+    }
+  };
+
+  /*
+   * A pending region shared by the calls gated by it.
+   */
+  private static class Region {
+    GeoPolygon polygon;
+    int refs;
+  }
+
+  /**
+   * Get the singleton of this scheduler.
+   * @param context The application context.
+   * @return The scheduler.
+   */
+  public static synchronized LocationQosScheduler getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new LocationQosScheduler(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  private LocationQosScheduler(Context context) {
+    mContext = context;
+    HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    mHandler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Add a reference to a pending region.  Each call gated by the region adds
+   * a reference when it starts.
+   * @param id The region ID.
+   * @param polygon The region, or null if it cannot be loaded.
+   */
+  public synchronized void addRegion(String id, GeoPolygon polygon) {
+    Region region = mRegions.get(id);
+    if (region == null) {
+      region = new Region();
+      mRegions.put(id, region);
+    }
+    if (polygon != null && polygon != region.polygon) {
+      region.polygon = polygon;
+      ++mVersion;
+    }
+    ++region.refs;
+  }
+
+  /**
+   * Remove a reference to a pending region.  The region is removed when the
+   * last call gated by it is done.
+   * @param id The region ID.
+   * @return true if the region was removed; false if it is still referenced
+   *          or not found.
+   */
+  public synchronized boolean removeRegion(String id) {
+    Region region = mRegions.get(id);
+    if (region == null || --region.refs > 0) {
+      return false;
+    }
+    mRegions.remove(id);
+    return true;
+  }
+
+  /**
+   * Add the hysteresis margin of a pending geo constraint.
+   * @param margin The margin in meters; 0 for none.
+   */
+  synchronized void addMargin(float margin) {
+    Integer count = mMargins.get(margin);
+    mMargins.put(margin, (count == null) ? 1 : count + 1);
+    ++mVersion;
+  }
+
+  /**
+   * Remove the hysteresis margin of a geo constraint which is done.
+   * @param margin The margin in meters; 0 for none.
+   */
+  synchronized void removeMargin(float margin) {
+    Integer count = mMargins.get(margin);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      mMargins.put(margin, count - 1);
+    } else {
+      mMargins.remove(margin);
+    }
+  }
+
+  /**
+   * Get the smallest hysteresis margin of the pending geo constraints.  A
+   * settled state only changes if a fix crosses its boundary by the margin.
+   * @return The margin in meters; 0 if none.
+   */
+  synchronized float getMinMargin() {
+    return mMargins.isEmpty() ? 0 : mMargins.firstKey();
+  }
+
+  /**
+   * Recompute the QoS using the current location snapshot.  It is coalesced
+   * with other reschedules and runs on a background thread.
+   */
+  public void reschedule() {
+    reschedule(null);
+  }
+
+  /**
+   * Recompute the QoS using a location fix, and apply it if the tier changed.
+   * It is coalesced with other reschedules and runs on a background thread.
+   * @param loc The location fix, or null to use the current location
+   *          snapshot.
+   */
+  public void reschedule(Location loc) {
+    synchronized(this) {
+      if (loc != null) {
+        mPendingFix = loc;
+      }
+      if (mScheduled) {
+        ++mCoalesced;
+        return;
+      }
+      mScheduled = true;
+    }
+    mHandler.postDelayed(mReschedule, COALESCE_WINDOW);
+  }
+
+  /*
+   * Apply the QoS for a location fix if the tier changed.
+   */
+  private void apply(Location loc) {
+    GeoFenceRegistry registry = GeoFenceRegistry.getInstance();
+    int tier;
+    float dist;
+    float minRadius;
+    synchronized(this) {
+      int pending = registry.size() + mRegions.size();
+      minRadius = registry.getSmallestRadius();
+      dist = Float.NaN;
+      if (pending == 0) {
+        tier = TIER_NONE;
+      } else if (loc == null) {
+        tier = TIER_APPROACH;
+      } else {
+        dist = distanceToBoundary(loc.getLatitude(), loc.getLongitude());
+        tier = tierOf(dist);
+        if (pending >= BUSY_THRESHOLD && tier > TIER_NEAR) {
+          --tier;
+        }
+      }
+      // Re-apply if the request was removed by LocationReceiver.done().
+      if (tier == mTier && (tier == TIER_NONE || LocationReceiver.isQosSet(mContext))) {
+        ++mSkipped;
+        return;
+      }
+      mTier = tier;
+      ++mApplied;
+    }
+    if (Log.isLoggable(Log.DEBUG)) {
+      Log.d(TAG, "reschedule() tier="+tier+", boundary="+dist+"m");
+    }
+    if (tier == TIER_NONE) {
+      LocationReceiver.clearQos(mContext);
+      return;
+    }
+    float displacement = DISPLACEMENTS[tier];
+    if (tier == TIER_NEAR) {
+      displacement = Math.min(displacement, minRadius / 4);
+    }
+    LocationRequest request = LocationRequest.create();
+    request.setPriority(PRIORITIES[tier]);
+    request.setInterval(INTERVALS[tier]);
+    request.setFastestInterval(INTERVALS[TIER_NEAR]);
+    request.setSmallestDisplacement(displacement);
+    LocationReceiver.setQos(mContext, request);
+  }
+
+  /**
+   * Get the distance from a location to the nearest boundary of the pending
+   * fences and regions.
+   * @param lat The latitude of the location.
+   * @param lng The longitude of the location.
+   * @return The distance in meters, or {@link Float#MAX_VALUE} if none.
+   */
+  public synchronized float distanceToBoundary(double lat, double lng) {
+    float dist = GeoFenceRegistry.getInstance().distanceToBoundary(lat, lng);
+    for (Region region : mRegions.values()) {
+      if (region.polygon != null) {
+        dist = Math.min(dist, region.polygon.distanceToBoundary(lat, lng));
+      }
+    }
+    return dist;
+  }
+
+  /**
+   * Get the version of the pending boundaries.  It changes when a fence,
+   * region or margin is added, so a boundary distance computed for a fix
+   * stays a lower bound while it does not change.
+   * @return The version of the boundaries.
+   */
+  synchronized long getBoundaryVersion() {
+    return mVersion + GeoFenceRegistry.getInstance().getVersion();
+  }
+
+  /**
+   * Get the current tier.
+   * @return One of the TIER constants.
+   */
+  public synchronized int getTier() {
+    return mTier;
+  }
+
+  /**
+   * Get the number of times a location request was applied or removed.
+   * @return The number of changes.
+   */
+  public synchronized long getAppliedCount() {
+    return mApplied;
+  }
+
+  /**
+   * Get the number of reschedules without a tier change.
+   * @return The number of skipped changes.
+   */
+  public synchronized long getSkippedCount() {
+    return mSkipped;
+  }
+
+  /**
+   * Get the number of reschedules coalesced into a pending one.
+   * @return The number of coalesced reschedules.
+   */
+  public synchronized long getCoalescedCount() {
+    return mCoalesced;
+  }
+
+  /*
+   * Pick the coarsest tier whose interval is shorter than the time to reach
+   * the boundary at the maximum speed.
+   */
+  private static int tierOf(float dist) {
+    double millis = dist / MAX_SPEED * 1000;
+    for (int tier = INTERVALS.length - 1; tier > TIER_NEAR; tier--) {
+      if (INTERVALS[tier] <= millis) {
+        return tier;
+      }
+    }
+    return TIER_NEAR;
+  }
+}
@@ -3,7 +3,13 @@
  */
 package com.magnet.android.mms.async.constraint;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesClient.ConnectionCallbacks;
@@ -15,7 +21,6 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationClient.OnAddGeofencesResultListener;
 import com.google.android.gms.location.LocationClient.OnRemoveGeofencesResultListener;
 import com.magnet.android.mms.async.Call;
-import com.magnet.android.mms.async.CallManager;
 import com.magnet.android.mms.utils.logger.Log;
 
 import android.app.PendingIntent;
@@ -23,7 +28,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.location.Location;
-import android.location.LocationManager;
 import android.os.Bundle;
 import android.widget.Toast;
 
@@ -36,11 +40,14 @@ import android.widget.Toast;
  * this extra constraints as a libproject.
  * 
  * In the AndroidManifest.xml, developer must specify a meta-data tag for Google
- * Play Service, the permission, receiver and AsyncIntentService:
+ * Play Service, the permission, receiver and AsyncIntentService.  The
+ * optional WAKE_LOCK permission keeps the device awake until the queue is
+ * drained after a location broadcast:
  * <p>
  * <pre>
  *   &lt;uses-permission android:name="android.permission.ACCESS_COARSE_LOCATION"/&gt;
  *   &lt;uses-permission android:name="android.permission.ACCESS_FINE_LOCATION"/&gt;
+ *   &lt;uses-permission android:name="android.permission.WAKE_LOCK"/&gt;
  *   ...
  *   &lt;application&gt;
  *     &lt;meta-data android:name="com.google.android.gms.version" 
@@ -80,7 +87,12 @@ public class LocationReceiver extends BroadcastReceiver {
   private final static int GEOFENCE_UPDATE_REQUEST = 301;
   private final static int LOCATION_UPDATE_REQUEST = 302;
   
+  private final static Object sLock = new Object();
   private static LocationClient sLocClient;
+  private static ConnectionState sState = ConnectionState.DISCONNECTED;
+  private static ConnectionFuture sConnFuture;
+  private static ArrayList<Operation> sPendingOps = new ArrayList<Operation>();
+  private static boolean sDoneWhenConnected;
   private static PendingIntent sPendingIntent;
   private static OnAddGeofencesResultListener sOnAddResultListener = new 
     OnAddGeofencesResultListener() {
@@ -120,16 +132,44 @@ public class LocationReceiver extends BroadcastReceiver {
     ConnectionCallbacks() {
       @Override
       public void onConnected(Bundle bundle) {
-        synchronized(sLocClient) {
-          sLocClient.notifyAll();
-        }
         Log.d(TAG, "onConnected() bundle="+bundle);
+        LocationClient client;
+        ArrayList<Operation> ops;
+        ConnectionFuture future;
+        boolean done;
+        synchronized(sLock) {
+          client = sLocClient;
+          if (client == null) {
+            // Disconnected by done() while connecting.
+            return;
+          }
+          sState = ConnectionState.CONNECTED;
+          ops = sPendingOps;
+          sPendingOps = new ArrayList<Operation>();
+          future = sConnFuture;
+          done = sDoneWhenConnected;
+        }
+        // A fix from the connected client is preferred over the passive one.
+        LocationSnapshot.invalidate();
+        for (Operation op : ops) {
+          runOperation(client, op);
+        }
+        if (future != null) {
+          future.complete(true);
+        }
+        // done() was deferred until the queued operations were submitted.
+        if (done) {
+          disconnect();
+        }
       }
 
       @Override
       public void onDisconnected() {
         Log.d(TAG, "onDisconnected()");
-        sLocClient = null;
+        synchronized(sLock) {
+          sState = ConnectionState.DISCONNECTED;
+          sLocClient = null;
+        }
       }
     };
     
@@ -138,12 +178,86 @@ public class LocationReceiver extends BroadcastReceiver {
       @Override
       public void onConnectionFailed(ConnectionResult result) {
         Log.e(TAG, "onConnectionFailed: result=" + result);
-        synchronized(sLocClient) {
-          sLocClient.notifyAll();
-        }
+        failConnection();
       }
     };
 
+  /**
+   * The state of the connection to Google Play Location Service.
+   */
+  public enum ConnectionState {
+    /**
+     * Not connected, or disconnected by {@link LocationReceiver#done(Context)}.
+     */
+    DISCONNECTED,
+    /**
+     * A connection is in progress; operations are queued until it is
+     * established.
+     */
+    CONNECTING,
+    /**
+     * Connected; operations are submitted immediately.
+     */
+    CONNECTED,
+    /**
+     * The last connection attempt failed; the next operation will retry.
+     */
+    FAILED
+  }
+
+  /*
+   * An operation on LocationClient, deferred until the client is connected.
+   */
+  private interface Operation {
+    public String getName();
+    public void run(LocationClient client);
+  }
+
+  /*
+   * The completion handle of a connection attempt.
+   */
+  private static class ConnectionFuture implements Future<Boolean> {
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private volatile boolean mConnected;
+
+    synchronized void complete(boolean connected) {
+      if (mLatch.getCount() > 0) {
+        mConnected = connected;
+        mLatch.countDown();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return mLatch.getCount() == 0;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException {
+      mLatch.await();
+      return mConnected;
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) 
+        throws InterruptedException, TimeoutException {
+      if (!mLatch.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return mConnected;
+    }
+  }
+
   @Override
   public void onReceive(Context context, Intent intent) {
     if (Log.isLoggable(Log.DEBUG))
@@ -151,9 +265,11 @@ public class LocationReceiver extends BroadcastReceiver {
     
     String action = intent.getAction();
     if (Call.ACTION_NO_ASYNC_PENDING_REQUESTS.equals(action)) {
+      GeofenceRegistrar.getInstance(context).flush();
       LocationReceiver.done(context.getApplicationContext());
     } else if (ACTION_LOCATION_CHANGE.equals(action)) {
-      if (intent.getBooleanExtra(EXTRA_IS_TRANSITION, false)) {
+      boolean isTransition = intent.getBooleanExtra(EXTRA_IS_TRANSITION, false);
+      if (isTransition) {
         if (Log.isLoggable(Log.DEBUG)) {
           StringBuilder sb = new StringBuilder();
           int transition = LocationClient.getGeofenceTransition(intent);
@@ -168,8 +284,60 @@ public class LocationReceiver extends BroadcastReceiver {
         }
       }
       
-      // Evaluate the constraint using the geo-fencing intent or GeoRegionConstraint
-      CallManager.getInstance(context.getApplicationContext()).run();
+      // Share the broadcasted fix with all constraints, or capture a new fix
+      // when the queue is drained.
+      Location loc = intent.getParcelableExtra(LocationClient.KEY_LOCATION_CHANGED);
+      if (loc != null) {
+        LocationSnapshot.update(loc);
+        LocationQosScheduler.getInstance(context).reschedule(loc);
+      } else {
+        LocationSnapshot.invalidate();
+      }
+      
+      // Evaluate the constraint using the geo-fencing intent or GeoRegionConstraint.
+      // The drains of a burst of broadcasts are coalesced off the main thread.
+      DrainScheduler.getInstance(context).trigger(loc, isTransition, goAsync());
+    }
+  }
+
+  /**
+   * Connect to Google Play Location Service for location update or geo-fence
+   * transition change when there is at least one pending request.  This
+   * method does not block; the operations issued before the connection is
+   * established are queued and submitted once it is connected.
+   * @param context The application context.
+   * @return A future completed with true if connected, or false if failed.
+   */
+  public static Future<Boolean> connect(Context context) {
+    synchronized(sLock) {
+      // A new request needs the connection after a deferred done().
+      sDoneWhenConnected = false;
+      if (sConnFuture != null && (sState == ConnectionState.CONNECTING ||
+                                  sState == ConnectionState.CONNECTED)) {
+        return sConnFuture;
+      }
+      sConnFuture = new ConnectionFuture();
+      int status = GooglePlayServicesUtil.isGooglePlayServicesAvailable(context);
+      if (status != ConnectionResult.SUCCESS) {
+        String[] googlePlaySvcStat = { "SUCCESS", "SERVICE MISSING", 
+            "SERVICE VERSION UPDATE REQUIRED", "SERVICE DISABLED", 
+            "SIGN_IN_REQUIRED", "INVALID ACCOUNT", "RESOLUTION REQUIRED",
+            "NETWORK ERROR", "INTERNAL ERROR", "SERVICE_INVALID",
+            "DEVELOPER_ERROR", "LICENSE_CHECK_FAILED", "DATE INVALID" };
+        Log.e(TAG, "Google Play Service status: "+
+            ((status < googlePlaySvcStat.length) ? googlePlaySvcStat[status] : status));
+        ConnectionFuture future = sConnFuture;
+        failConnection();
+        return future;
+      }
+      if (Log.isLoggable(Log.DEBUG)) {
+        Log.d(TAG, "Connecting to Location Client...");
+      }
+      sState = ConnectionState.CONNECTING;
+      sLocClient = new LocationClient(context, sConnectionCallbacks,
+                                      sFailedListener);
+      sLocClient.connect();
+      return sConnFuture;
     }
   }
 
@@ -180,189 +348,246 @@ public class LocationReceiver extends BroadcastReceiver {
    * @param context The application context.
    * @param timeout Connection timeout in milliseconds.
    * @return true if connected; false if not connected.
+   * @deprecated This method blocks the caller up to the timeout; use 
+   *            {@link #connect(Context)} instead.
    */
+  @Deprecated
   public static boolean init(Context context, long timeout ) {
-    int status = GooglePlayServicesUtil.isGooglePlayServicesAvailable(context);
-    if (status != ConnectionResult.SUCCESS) {
-      String[] googlePlaySvcStat = { "SUCCESS", "SERVICE MISSING", 
-          "SERVICE VERSION UPDATE REQUIRED", "SERVICE DISABLED", 
-          "SIGN_IN_REQUIRED", "INVALID ACCOUNT", "RESOLUTION REQUIRED",
-          "NETWORK ERROR", "INTERNAL ERROR", "SERVICE_INVALID",
-          "DEVELOPER_ERROR", "LICENSE_CHECK_FAILED", "DATE INVALID" };
-      Log.e(TAG, "Google Play Service status: "+googlePlaySvcStat[status]);
-      return false;
-    }
-    
-    if (sLocClient == null) {
-      synchronized (sConnectionCallbacks) {
-        if (sLocClient == null) {
-          sLocClient = new LocationClient(context, sConnectionCallbacks,
-                                          sFailedListener);
-          sLocClient.connect();
-        }
+    Future<Boolean> future = connect(context);
+    try {
+      if (timeout > 0L) {
+        return future.get(timeout, TimeUnit.MILLISECONDS);
+      } else {
+        return future.get();
       }
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      return false;
+    } catch (ExecutionException e) {
+      return false;
     }
-    synchronized (sLocClient) {
-      if (sLocClient.isConnected()) {
-        return true;
-      }
-      try {
-        if (Log.isLoggable(Log.DEBUG)) {
-          Log.d(TAG, "Connecting to Location Client... wait("+timeout+")");
-        }
-        if (timeout > 0L) {
-          sLocClient.wait(timeout);
-        } else {
-          sLocClient.wait();
-        }
-      } catch (InterruptedException e) {
-        // Ignored.
-      }
+  }
+
+  /**
+   * Get the state of the connection to Google Play Location Service.
+   * @return The connection state.
+   */
+  public static ConnectionState getConnectionState() {
+    synchronized(sLock) {
+      return sState;
     }
-    return sLocClient.isConnected();
   }
   
   /**
    * Done with this receiver.  It will disconnect from Google Play Service when
    * there are no more pending requests.  If there is a request of location
-   * updates, it will be removed.
+   * updates, it will be removed.  If operations such as geo-fence removals
+   * are queued while connecting, it disconnects after they are submitted.
    * @param context
    */
   public static void done(Context context) {
-    if (Log.isLoggable(Log.DEBUG))
-      Log.d(TAG, "Removing location updates listener: no-op="+(sPendingIntent==null));
-    if (sPendingIntent != null) {
-      if (sLocClient != null) {
-        sLocClient.removeLocationUpdates(sPendingIntent);
+    synchronized(sLock) {
+      if (sState == ConnectionState.CONNECTING && !sPendingOps.isEmpty()) {
+        if (Log.isLoggable(Log.DEBUG))
+          Log.d(TAG, "Deferring done() until "+sPendingOps.size()+" operations are submitted");
+        sDoneWhenConnected = true;
+        return;
       }
-      sPendingIntent = null;
     }
-    
-    if (Log.isLoggable(Log.DEBUG))
-      Log.d(TAG, "Disconnec from Location Client="+sLocClient);
-    if (sLocClient != null) {
-      sLocClient.disconnect();
-      sLocClient = null;
+    disconnect();
+  }
+
+  private static void disconnect() {
+    synchronized(sLock) {
+      sDoneWhenConnected = false;
+      if (Log.isLoggable(Log.DEBUG))
+        Log.d(TAG, "Removing location updates listener: no-op="+(sPendingIntent==null));
+      if (sPendingIntent != null) {
+        if (sLocClient != null && sLocClient.isConnected()) {
+          sLocClient.removeLocationUpdates(sPendingIntent);
+        }
+        sPendingIntent = null;
+      }
+      
+      if (Log.isLoggable(Log.DEBUG))
+        Log.d(TAG, "Disconnec from Location Client="+sLocClient);
+      if (sLocClient != null) {
+        sLocClient.disconnect();
+        sLocClient = null;
+      }
+      sState = ConnectionState.DISCONNECTED;
+      sPendingOps.clear();
+      if (sConnFuture != null) {
+        sConnFuture.complete(false);
+        sConnFuture = null;
+      }
     }
   }
   
   /**
-   * Get the last known location using Google Play Location Service.
+   * Get the last known location from the registered {@link LocationSources}.
+   * By default, it is the last broadcasted location, the last location of
+   * Google Play Location Service if connected, or the last known location from
+   * the passive provider of Android Location Service.  This method does not
+   * block.
    * @param context The application context.
-   * @return null if Location Service is not available; otherwise, a location.
+   * @return null if no location is available; otherwise, a location.
    */
   public static Location getLastLocation(Context context) {
-    try {
-      boolean inited = true;
-      if (sLocClient == null || !sLocClient.isConnected()) {
-        inited = LocationReceiver.init(context, 10000L);
-      }
-      if (inited) {
-        return sLocClient.getLastLocation();
-      } else {
-        return null;
-      }
-    } catch (Throwable e) {
-      Log.e(TAG, "Unable to get last location", e);
-      return null;
-    }
+    return LocationSources.getLocation(context, LocationSources.ANY_ACCURACY);
   }
   
   /**
    * Get the last known location using Google Play Location Service or Android
-   * Location Service via passive provider.
+   * Location Service via passive provider.  This method does not block.
    * @param context The application context.
    * @return The last known location, or null.
    */
   public static Location getLastKnownLocation(Context context) {
+    Location loc = getClientLocation(context);
+    if (loc != null) {
+      return loc;
+    }
+    Log.w(TAG, "Use passive provider from Android Location Service for last location");
+    return new PlatformLocationSource().getLocation(context);
+  }
+  
+  /**
+   * Get the last location using Google Play Location Service.  If the service
+   * is not connected yet, a connection is started.  This method does not
+   * block.
+   * @param context The application context.
+   * @return The last location, or null if not connected or not available.
+   */
+  static Location getClientLocation(Context context) {
     try {
-      boolean inited = true;
-      if (sLocClient == null || !sLocClient.isConnected()) {
-        inited = LocationReceiver.init(context, 10000L);
+      LocationClient client = null;
+      synchronized(sLock) {
+        if (sState == ConnectionState.CONNECTED && sLocClient != null &&
+            sLocClient.isConnected()) {
+          client = sLocClient;
+        }
       }
-      if (inited) {
-        return sLocClient.getLastLocation();
-      } else {
-        Log.w(TAG, "Use passive provider from Android Location Service for last location");
-        LocationManager locMgr = (LocationManager) context.getSystemService(
-            Context.LOCATION_SERVICE);
-        return locMgr.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
+      if (client != null) {
+        return client.getLastLocation();
       }
+      connect(context);
+      return null;
     } catch (Throwable e) {
-      Log.e(TAG, "Unable to get last known location", e);
+      Log.e(TAG, "Unable to get last location", e);
       return null;
     }
   }
 
   /**
    * Add one or more points as geo-fences.  Each geo-fence must have an ID.
+   * The geo-fences are added when Google Play Location Service is connected.
    * @param context The application context.
    * @param list A list of geo-fences.
    */
-  public static void addGeofences(Context context, List<Geofence> list) {
-    boolean inited = true;
-    if (sLocClient == null || !sLocClient.isConnected()) {
-      inited = LocationReceiver.init(context, 10000L);
-    }
-    if (!inited) {
-      Log.e(TAG, "addGeofences failed: "+NOT_READY);
-    } else {
-      Log.d(TAG, "addGeofences()");
-      Intent intent = (new Intent(LocationReceiver.ACTION_LOCATION_CHANGE))
-          .setPackage(context.getPackageName())
-          .addFlags(Intent.FLAG_RECEIVER_REPLACE_PENDING)
-          .putExtra(EXTRA_IS_TRANSITION, true);
-      
-      PendingIntent pendingIntent = PendingIntent.getBroadcast(
-        context.getApplicationContext(), GEOFENCE_UPDATE_REQUEST, intent,
-        PendingIntent.FLAG_UPDATE_CURRENT);
-      
-      sLocClient.addGeofences(list, pendingIntent, sOnAddResultListener);
-    }
+  public static void addGeofences(final Context context, final List<Geofence> list) {
+    runWhenConnected(context, new Operation() {
+      @Override
+      public String getName() {
+        return "addGeofences";
+      }
+
+      @Override
+      public void run(LocationClient client) {
+        Log.d(TAG, "addGeofences()");
+        Intent intent = (new Intent(LocationReceiver.ACTION_LOCATION_CHANGE))
+            .setPackage(context.getPackageName())
+            .addFlags(Intent.FLAG_RECEIVER_REPLACE_PENDING)
+            .putExtra(EXTRA_IS_TRANSITION, true);
+        
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(
+          context.getApplicationContext(), GEOFENCE_UPDATE_REQUEST, intent,
+          PendingIntent.FLAG_UPDATE_CURRENT);
+        
+        client.addGeofences(list, pendingIntent, sOnAddResultListener);
+      }
+    });
   }
   
   /**
-   * Remove the geofences by their ID's.
+   * Remove the geofences by their ID's.  The geo-fences are removed when 
+   * Google Play Location Service is connected.
    * @param context The application context.
    * @param ids A list of geo-fence ID.
    */
-  public static void removeGeofences(Context context, List<String> ids) {
-    boolean inited = true;
-    if (sLocClient == null || !sLocClient.isConnected()) {
-      inited = LocationReceiver.init(context, 10000L);
-    }
-    if (!inited) {
-      Log.e(TAG, "removeGeofences failed: "+NOT_READY);
-    } else {
-      sLocClient.removeGeofences(ids, sOnRemoveResultListener);
-    }
+  public static void removeGeofences(Context context, final List<String> ids) {
+    runWhenConnected(context, new Operation() {
+      @Override
+      public String getName() {
+        return "removeGeofences";
+      }
+
+      @Override
+      public void run(LocationClient client) {
+        client.removeGeofences(ids, sOnRemoveResultListener);
+      }
+    });
   }
   
   /**
    * Specify the quality of service for location updates from Google Play 
-   * Service.  Any existing QoS will be overwritten.
+   * Service.  Any existing QoS will be overwritten.  The QoS is applied when
+   * Google Play Location Service is connected.
    * @param context The application context.
    * @param qosRqt A non-null QoS request.
-   * @return true for QoS set successfully; false for failure.
+   * @return true for QoS set or queued successfully; false for failure.
    */
-  public static boolean setQos(Context context, LocationRequest qosRqt ) {
-    boolean inited = true;
-    if (sLocClient == null || !sLocClient.isConnected()) {
-      inited = LocationReceiver.init(context, 10000L);
-    }
-    if (!inited) {
-      Log.e(TAG, "Google Play Service: "+NOT_READY);
-      return false;
-    }
-    Log.d(TAG, "Enabling requestLocationUpdates()");
+  public static boolean setQos(Context context, final LocationRequest qosRqt ) {
     Intent intent = (new Intent(LocationReceiver.ACTION_LOCATION_CHANGE))
         .setPackage(context.getPackageName())
         .addFlags(Intent.FLAG_RECEIVER_REPLACE_PENDING)
         .putExtra(EXTRA_IS_TRANSITION, false);
-    sPendingIntent = PendingIntent.getBroadcast(context.getApplicationContext(),
-        LOCATION_UPDATE_REQUEST, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-    sLocClient.requestLocationUpdates(qosRqt, sPendingIntent);
-    return true;
+    final PendingIntent pendingIntent = PendingIntent.getBroadcast(
+        context.getApplicationContext(), LOCATION_UPDATE_REQUEST, intent,
+        PendingIntent.FLAG_UPDATE_CURRENT);
+    synchronized(sLock) {
+      sPendingIntent = pendingIntent;
+    }
+    return runWhenConnected(context, new Operation() {
+      @Override
+      public String getName() {
+        return "setQos";
+      }
+
+      @Override
+      public void run(LocationClient client) {
+        Log.d(TAG, "Enabling requestLocationUpdates()");
+        client.requestLocationUpdates(qosRqt, pendingIntent);
+      }
+    });
+  }
+  
+  /**
+   * Remove the request of location updates from Google Play Service.
+   * @param context The application context.
+   */
+  public static void clearQos(Context context) {
+    final PendingIntent pendingIntent;
+    synchronized(sLock) {
+      pendingIntent = sPendingIntent;
+      sPendingIntent = null;
+    }
+    if (pendingIntent == null) {
+      return;
+    }
+    runWhenConnected(context, new Operation() {
+      @Override
+      public String getName() {
+        return "clearQos";
+      }
+
+      @Override
+      public void run(LocationClient client) {
+        Log.d(TAG, "Disabling requestLocationUpdates()");
+        client.removeLocationUpdates(pendingIntent);
+      }
+    });
   }
   
   /**
@@ -373,4 +598,58 @@ public class LocationReceiver extends BroadcastReceiver {
   public static boolean isQosSet(Context context) {
     return sPendingIntent != null;
   }
+
+  /*
+   * Run an operation now if connected, or queue it until connected.  Return
+   * false if Google Play Location Service is not available.
+   */
+  private static boolean runWhenConnected(Context context, Operation op) {
+    LocationClient client = null;
+    synchronized(sLock) {
+      if (sState == ConnectionState.CONNECTED && sLocClient != null &&
+          sLocClient.isConnected()) {
+        client = sLocClient;
+      } else {
+        sPendingOps.add(op);
+      }
+    }
+    if (client != null) {
+      return runOperation(client, op);
+    }
+    connect(context);
+    return getConnectionState() != ConnectionState.FAILED;
+  }
+
+  private static boolean runOperation(LocationClient client, Operation op) {
+    try {
+      op.run(client);
+      return true;
+    } catch (Throwable e) {
+      Log.e(TAG, op.getName()+" failed", e);
+      return false;
+    }
+  }
+
+  /*
+   * Mark the connection as failed and drop all queued operations.
+   */
+  private static void failConnection() {
+    ArrayList<Operation> ops;
+    ConnectionFuture future;
+    synchronized(sLock) {
+      sState = ConnectionState.FAILED;
+      sDoneWhenConnected = false;
+      sLocClient = null;
+      sPendingIntent = null;
+      ops = sPendingOps;
+      sPendingOps = new ArrayList<Operation>();
+      future = sConnFuture;
+    }
+    for (Operation op : ops) {
+      Log.e(TAG, op.getName()+" failed: "+NOT_READY);
+    }
+    if (future != null) {
+      future.complete(false);
+    }
+  }
 }
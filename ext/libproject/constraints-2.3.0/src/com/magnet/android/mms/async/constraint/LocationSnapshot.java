@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+
+/**
+ * A location fix shared by all location based constraints.  When the queued
+ * requests are drained, the first constraint captures the fix from the
+ * {@link LocationSources} and the rest of the constraints reuse it as long as
+ * the snapshot is within the freshness window, unless a constraint requires
+ * a better accuracy than the fix has; the sources are asked again only once
+ * for each stricter accuracy.  {@link LocationReceiver} replaces the snapshot
+ * when a location update is broadcasted.  A new snapshot changes the
+ * generation of {@link Signals#LOCATION} only if its fix differs from the
+ * previous one, so recapturing or refining to the same fix keeps the
+ * remembered results.
+ */
+public class LocationSnapshot {
+  /**
+   * The default freshness window in milliseconds.
+   */
+  public final static long DEFAULT_FRESHNESS = 10 * 1000L;  // 10 seconds
+
+  private final static String TAG = "LocationSnapshot";
+  private static long sFreshness = DEFAULT_FRESHNESS;
+  private static LocationSnapshot sCurrent;
+
+  private final Location mLocation;
+  private final long mCapturedAt;
+  private final long mGeneration;
+  private float mRequested;   // the strictest accuracy asked to the sources
+
+  private LocationSnapshot(Location location, float requested,
+                           LocationSnapshot previous) {
+    mLocation = location;
+    mRequested = requested;
+    mCapturedAt = SystemClock.elapsedRealtime();
+    if (previous == null || !isSameFix(previous.mLocation, location)) {
+      Signals.changed(Signals.LOCATION);
+    }
+    mGeneration = Signals.getGeneration(Signals.LOCATION);
+  }
+
+  /**
+   * Get the current snapshot.  A new fix is captured from the
+   * {@link LocationSources} if the current snapshot is older than the
+   * freshness window.
+   * @param appContext The application context.
+   * @return A non-null snapshot, which may not have a location.
+   */
+  public static LocationSnapshot get(Context appContext) {
+    return get(appContext, LocationSources.ANY_ACCURACY);
+  }
+
+  /**
+   * Get the current snapshot with a required accuracy.  A new fix is captured
+   * from the {@link LocationSources} if the current snapshot is older than the
+   * freshness window, or if its fix is less accurate than required and the
+   * sources have not been asked for that accuracy yet.  The snapshot is only
+   * replaced by a more accurate fix.
+   * @param appContext The application context.
+   * @param accuracy The required accuracy in meters, or
+   *          {@link LocationSources#ANY_ACCURACY}.
+   * @return A non-null snapshot, which may not have a location.
+   */
+  public static synchronized LocationSnapshot get(Context appContext, float accuracy) {
+    if (sCurrent == null || sCurrent.getAge() > sFreshness) {
+      sCurrent = new LocationSnapshot(LocationSources.getLocation(appContext, accuracy),
+                                      accuracy, sCurrent);
+      if (Log.isLoggable(Log.DEBUG)) {
+        Log.d(TAG, "get() captured loc="+sCurrent.mLocation);
+      }
+    } else if (accuracy < sCurrent.mRequested && sCurrent.accuracyOf() > accuracy) {
+      Location loc = LocationSources.getLocation(appContext, accuracy);
+      if (loc != null && LocationSources.accuracyOf(loc) < sCurrent.accuracyOf()) {
+        sCurrent = new LocationSnapshot(loc, accuracy, sCurrent);
+        if (Log.isLoggable(Log.DEBUG)) {
+          Log.d(TAG, "get() refined loc="+loc);
+        }
+      } else {
+        sCurrent.mRequested = accuracy;
+      }
+    }
+    return sCurrent;
+  }
+
+  /**
+   * Replace the current snapshot with a location fix.
+   * @param location A location fix, or null.
+   * @return The new snapshot.
+   */
+  public static synchronized LocationSnapshot update(Location location) {
+    CachedLocationSource.put(location);
+    sCurrent = new LocationSnapshot(location, LocationSources.ANY_ACCURACY, sCurrent);
+    return sCurrent;
+  }
+
+  /**
+   * Discard the current snapshot.  The next {@link #get(Context)} will capture
+   * a new fix.  It changes the generation of {@link Signals#LOCATION}, so the
+   * remembered results are evaluated again.
+   */
+  public static synchronized void invalidate() {
+    sCurrent = null;
+    Signals.changed(Signals.LOCATION);
+  }
+
+  /**
+   * Set the freshness window of the snapshot.
+   * @param millis The freshness window in milliseconds.
+   */
+  public static synchronized void setFreshness(long millis) {
+    sFreshness = millis;
+  }
+
+  /**
+   * Get the freshness window of the snapshot.
+   * @return The freshness window in milliseconds.
+   */
+  public static synchronized long getFreshness() {
+    return sFreshness;
+  }
+
+  /**
+   * Check if this snapshot has a location fix.
+   * @return true if it has a location; otherwise, false.
+   */
+  public boolean hasLocation() {
+    return mLocation != null;
+  }
+
+  /**
+   * Get the location fix.
+   * @return The location fix, or null if the location was not available.
+   */
+  public Location getLocation() {
+    return mLocation;
+  }
+
+  /**
+   * Get the generation of {@link Signals#LOCATION} of this snapshot.  It is
+   * taken with the fix, so a result remembered with it is never newer than
+   * the fix it was evaluated with.
+   * @return The generation.
+   */
+  long getGeneration() {
+    return mGeneration;
+  }
+
+  /**
+   * Get the age of this snapshot.
+   * @return The elapsed time in milliseconds since it was captured.
+   */
+  public long getAge() {
+    return SystemClock.elapsedRealtime() - mCapturedAt;
+  }
+
+  /**
+   * Get the age of the location fix.
+   * @return The elapsed time in milliseconds since the fix was acquired, or
+   *          -1 if there is no location.
+   */
+  public long getFixAge() {
+    if (mLocation == null) {
+      return -1L;
+    }
+    return System.currentTimeMillis() - mLocation.getTime();
+  }
+
+  /**
+   * Get the accuracy radius of the location fix.
+   * @return The accuracy in meters, or 0 if the accuracy is unknown.
+   */
+  public float getAccuracy() {
+    return (mLocation == null || !mLocation.hasAccuracy()) ?
+        0.0f : mLocation.getAccuracy();
+  }
+
+  /*
+   * Check if two fixes have the same position and accuracy.
+   */
+  private static boolean isSameFix(Location lhs, Location rhs) {
+    if (lhs == null || rhs == null) {
+      return lhs == rhs;
+    }
+    return lhs.getLatitude() == rhs.getLatitude() &&
+           lhs.getLongitude() == rhs.getLongitude() &&
+           LocationSources.accuracyOf(lhs) == LocationSources.accuracyOf(rhs);
+  }
+
+  private float accuracyOf() {
+    return (mLocation == null) ? LocationSources.ANY_ACCURACY :
+        LocationSources.accuracyOf(mLocation);
+  }
+
+  @Override
+  public String toString() {
+    return "LocationSnapshot[loc="+mLocation+", age="+getAge()+"]";
+  }
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+import android.location.Location;
+
+/**
+ * A source of the location fixes for the location based constraints.  The
+ * sources are registered in {@link LocationSources}, which asks them from the
+ * cheapest by their {@link Cost} until a fix meets the accuracy required by a
+ * constraint.
+ * @see PlayServicesLocationSource
+ * @see PlatformLocationSource
+ * @see CachedLocationSource
+ * @see InMemoryLocationSource
+ */
+public interface LocationSource extends Cost.Estimated {
+  /**
+   * Get the latest location fix from this source.  This method must not
+   * block.
+   * @param appContext The application context.
+   * @return The location fix, or null if not available.
+   */
+  public Location getLocation(Context appContext);
+}
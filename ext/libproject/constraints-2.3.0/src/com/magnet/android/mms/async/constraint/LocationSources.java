@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.location.Location;
+
+/**
+ * The registered {@link LocationSource}s.  A location is selected by asking
+ * the sources from the cheapest until a fix meets the required accuracy; if
+ * none does, the most accurate fix is used.  The default sources are the
+ * {@link CachedLocationSource}, the {@link PlayServicesLocationSource} and the
+ * passive {@link PlatformLocationSource}.
+ */
+public final class LocationSources {
+  /**
+   * Any fix is accurate enough.
+   */
+  public final static float ANY_ACCURACY = Float.MAX_VALUE;
+
+  private final static String TAG = "LocationSources";
+  private final static Comparator<LocationSource> BY_COST = new Comparator<LocationSource>() {
+    @Override
+    public int compare(LocationSource lhs, LocationSource rhs) {
+      int lcost = lhs.getCost();
+      int rcost = rhs.getCost();
+      return (lcost < rcost) ? -1 : ((lcost == rcost) ? 0 : 1);
+    }
+  };
+  private static LocationSource[] sSources = {
+    new CachedLocationSource(),
+    new PlayServicesLocationSource(),
+    new PlatformLocationSource() };
+
+  private LocationSources() {
+  }
+
+  /**
+   * Replace the registered sources, e.g. with an {@link InMemoryLocationSource}
+   * for testing.  The shared {@link LocationSnapshot} is invalidated.
+   * @param sources At least one source.
+   */
+  public static void set(LocationSource... sources) {
+    if (sources == null || sources.length == 0) {
+      throw new IllegalArgumentException("At least one source is required.");
+    }
+    LocationSource[] sorted = sources.clone();
+    Arrays.sort(sorted, BY_COST);
+    synchronized(LocationSources.class) {
+      sSources = sorted;
+    }
+    LocationSnapshot.invalidate();
+  }
+
+  /**
+   * Get the registered sources.
+   * @return The sources from the cheapest.
+   */
+  public static synchronized LocationSource[] get() {
+    return sSources.clone();
+  }
+
+  /**
+   * Select a location fix.
+   * @param appContext The application context.
+   * @param accuracy The required accuracy in meters, or {@link #ANY_ACCURACY}.
+   * @return The first fix meeting the accuracy, the most accurate fix, or null
+   *          if no source has a location.
+   */
+  public static Location getLocation(Context appContext, float accuracy) {
+    LocationSource[] sources;
+    synchronized(LocationSources.class) {
+      sources = sSources;
+    }
+    Location best = null;
+    for (LocationSource source : sources) {
+      Location loc = source.getLocation(appContext);
+      if (loc == null) {
+        continue;
+      }
+      if (accuracyOf(loc) <= accuracy) {
+        if (Log.isLoggable(Log.DEBUG)) {
+          Log.d(TAG, "getLocation() from "+source.getClass().getSimpleName());
+        }
+        return loc;
+      }
+      if (best == null || accuracyOf(loc) < accuracyOf(best)) {
+        best = loc;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Get the accuracy of a fix.
+   * @param loc A location fix.
+   * @return The accuracy in meters, or {@link #ANY_ACCURACY} if unknown.
+   */
+  static float accuracyOf(Location loc) {
+    return loc.hasAccuracy() ? loc.getAccuracy() : ANY_ACCURACY;
+  }
+}
@@ -3,6 +3,7 @@
  */
 package com.magnet.android.mms.async.constraint;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 
 import android.content.Context;
@@ -17,10 +18,12 @@ import android.content.Context;
  * to drain any queued requests when the application is not running.
  * @see com.magnet.android.async.NetworkStateReceiver
  */
-public class MobileConstraint extends WWANConstraint implements Serializable {
+public class MobileConstraint extends WWANConstraint
+    implements Signals.Dependent, Cost.Estimated, Serializable {
   private static final long serialVersionUID = 9152714061699760814L;
   private final static String TAG = "MobileConstraint";
   private WifiConstraint mWifiConstraint;
+  private Boolean mAllowRoaming;  // null if deserialized from an old release
   
   /**
    * Default constructor disallowing roaming.
@@ -28,6 +31,7 @@ public class MobileConstraint extends WWANConstraint implements Serializable {
   public MobileConstraint() {
     super();
     mWifiConstraint = new WifiConstraint();
+    mAllowRoaming = Boolean.FALSE;
   }
   
   @Deprecated
@@ -42,6 +46,7 @@ public class MobileConstraint extends WWANConstraint implements Serializable {
   public MobileConstraint(boolean allowRoaming) {
     super(allowRoaming);
     mWifiConstraint = new WifiConstraint();
+    mAllowRoaming = allowRoaming;
   }
   
   /**
@@ -51,8 +56,63 @@ public class MobileConstraint extends WWANConstraint implements Serializable {
    */
   @Override
   public boolean isAllowed(Context context) {
-    if (super.isAllowed(context))
-      return true;
-    return mWifiConstraint.isAllowed(context);
+    if (mAllowRoaming == null) {
+      return super.isAllowed(context) || mWifiConstraint.isAllowed(context);
+    }
+    // Read the network state captured on the last connectivity change.
+    ConnectivitySnapshot snapshot = ConnectivitySnapshot.get(context);
+    return snapshot.isWWAN(mAllowRoaming.booleanValue()) || snapshot.isWifi();
+  }
+  
+  /**
+   * Get the signals this constraint depends on.
+   * @return {@link Signals#NETWORK}
+   */
+  @Override
+  public int getSignals() {
+    return Signals.NETWORK;
+  }
+  
+  /**
+   * Get the cost of checking this constraint.
+   * @return {@link Cost#CACHED}, or twice {@link Cost#SERVICE} for the
+   *          form deserialized from an old release.
+   */
+  @Override
+  public int getCost() {
+    return (mAllowRoaming == null) ? 2 * Cost.SERVICE : Cost.CACHED;
+  }
+  
+  /**
+   * Start monitoring this constraint after the call is queued.
+   * @param context The application context.
+   */
+  @Override
+  public void startInBackground(Context context) {
+    super.startInBackground(context);
+    Signals.addPending(getSignals());
+  }
+  
+  /**
+   * Stop monitoring this constraint after the call is done.
+   * @param context The application context.
+   */
+  @Override
+  public void stopInBackground(Context context) {
+    super.stopInBackground(context);
+    Signals.removePending(getSignals());
+  }
+  
+  Boolean getAllowRoaming() {
+    return mAllowRoaming;
+  }
+  
+  /**
+   * Replace this constraint with its compact form for serialization.
+   * @return The compact form.
+   * @throws ObjectStreamException
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    return ConstraintCodec.replace(this);
   }
 }
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import com.magnet.android.mms.async.CallManager;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+
+/**
+ * This receiver captures a new {@link ConnectivitySnapshot} and changes the
+ * generations of the network {@link Signals} when the connectivity changes.
+ * It is registered by {@link Signals} while the application is running, so
+ * it does not need to be specified in AndroidManifest.xml.  The broadcast
+ * may reach {@link NetworkStateReceiver} first, which then checks the queued
+ * requests with the old snapshot, so this receiver drains the queue again
+ * when a signal which a queued {@link ConnectivityConstraint} or
+ * {@link MobileConstraint} depends on has changed.
+ */
+public class NetworkSignalReceiver extends BroadcastReceiver {
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+      ConnectivitySnapshot snapshot = ConnectivitySnapshot.update(context);
+      if ((snapshot.getChanged() & Signals.getPendingSignals()) != 0 &&
+          snapshot.isConnected() &&
+          !isInitialStickyBroadcast()) {
+        CallManager.getInstance(context).run();
+      }
+    }
+  }
+}
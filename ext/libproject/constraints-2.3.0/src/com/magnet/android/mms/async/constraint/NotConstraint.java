@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+
+/**
+ * This constraint is met when its child constraint is not met.  The child is
+ * still started and stopped with this constraint.
+ */
+public class NotConstraint extends CompositeConstraint {
+  private static final long serialVersionUID = -4780781417752523221L;
+
+  /**
+   * Default constructor.
+   * @param constraint The constraint to negate.
+   */
+  public NotConstraint(Constraint constraint) {
+    super(new Constraint[] { constraint }, false);
+  }
+
+  /**
+   * Check if the child constraint is not met.
+   * @param appContext The application context.
+   * @return true if the child is not met; otherwise, false.
+   */
+  @Override
+  public boolean isAllowed(Context appContext) {
+    return !getChildren()[0].isAllowed(appContext);
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+
+/**
+ * This constraint is met when any of its child constraints is met.  The
+ * children are checked from the cheapest by their {@link Cost}, and the check
+ * stops at the first child met.
+ */
+public class OrConstraint extends CompositeConstraint {
+  private static final long serialVersionUID = -6379212345797982757L;
+
+  /**
+   * Default constructor.
+   * @param constraints At least one constraint.
+   */
+  public OrConstraint(Constraint... constraints) {
+    super(constraints, true);
+  }
+
+  /**
+   * Check if any child constraint is met.
+   * @param appContext The application context.
+   * @return true if any is met; otherwise, false.
+   */
+  @Override
+  public boolean isAllowed(Context appContext) {
+    for (Constraint child : getChildren()) {
+      if (child.isAllowed(appContext)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+
+/**
+ * The last known location from a provider of Android Location Service.  The
+ * default passive provider does not turn on any radio.
+ */
+public class PlatformLocationSource implements LocationSource {
+  private final static String TAG = "PlatformLocationSource";
+  private final String mProvider;
+
+  /**
+   * Constructor using the passive provider.
+   */
+  public PlatformLocationSource() {
+    this(LocationManager.PASSIVE_PROVIDER);
+  }
+
+  /**
+   * Constructor using a provider.
+   * @param provider A provider name, e.g. {@link LocationManager#NETWORK_PROVIDER}.
+   */
+  public PlatformLocationSource(String provider) {
+    mProvider = provider;
+  }
+
+  /**
+   * Get the last known location of the provider.
+   * @param appContext The application context.
+   * @return The last known location, or null.
+   */
+  @Override
+  public Location getLocation(Context appContext) {
+    try {
+      LocationManager locMgr = (LocationManager) appContext.getSystemService(
+          Context.LOCATION_SERVICE);
+      return locMgr.getLastKnownLocation(mProvider);
+    } catch (Throwable e) {
+      Log.e(TAG, "Unable to get last known location from "+mProvider, e);
+      return null;
+    }
+  }
+
+  /**
+   * Get the cost of getting a location.
+   * @return {@link Cost#SERVICE}
+   */
+  @Override
+  public int getCost() {
+    return Cost.SERVICE;
+  }
+}
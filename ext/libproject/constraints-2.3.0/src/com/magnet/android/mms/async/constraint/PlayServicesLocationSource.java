@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+import android.location.Location;
+
+/**
+ * The last location from Google Play Location Service.  If the service is not
+ * connected yet, a connection is started and no location is returned.
+ */
+public class PlayServicesLocationSource implements LocationSource {
+  /**
+   * Get the last location if the service is connected.
+   * @param appContext The application context.
+   * @return The last location, or null.
+   */
+  @Override
+  public Location getLocation(Context appContext) {
+    return LocationReceiver.getClientLocation(appContext);
+  }
+
+  /**
+   * Get the cost of getting a location.
+   * @return {@link Cost#SERVICE}
+   */
+  @Override
+  public int getCost() {
+    return Cost.SERVICE;
+  }
+}
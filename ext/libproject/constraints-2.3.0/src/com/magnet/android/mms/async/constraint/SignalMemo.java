@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import android.content.Context;
+
+/**
+ * The last result of a constraint with the generation of its {@link Signals}.
+ * It is kept in a transient field and is safe to share between threads.
+ */
+final class SignalMemo {
+  private final int mSignals;
+  private volatile long mState;   // ((generation + 1) << 1) | result, or 0
+
+  SignalMemo(int signals) {
+    mSignals = signals;
+  }
+
+  /**
+   * Get the current generation of the signals.  It must be taken before the
+   * inputs are read, so a change during the evaluation is not missed.
+   * @param context The application context.
+   * @return The generation, or -1 if the signals are not tracked.
+   */
+  long getGeneration(Context context) {
+    return Signals.getGeneration(context, mSignals);
+  }
+
+  /**
+   * Get the remembered result.
+   * @param generation The current generation.
+   * @return 1 if allowed, 0 if not allowed, or -1 if not remembered.
+   */
+  int get(long generation) {
+    long state = mState;
+    boolean hit = (generation >= 0 && (state >>> 1) == generation + 1);
+    Signals.count(hit);
+    return hit ? (int) (state & 1L) : -1;
+  }
+
+  /**
+   * Remember a result.
+   * @param generation The generation taken before the evaluation.
+   * @param allowed The result.
+   */
+  void put(long generation, boolean allowed) {
+    mState = (generation < 0) ? 0L : ((generation + 1) << 1) | (allowed ? 1L : 0L);
+  }
+
+  /**
+   * Evaluate a constraint, or reuse its last result if its signals have not
+   * changed.
+   * @param context The application context.
+   * @param constraint The constraint depending on the signals of this memo.
+   * @return true if allowed; otherwise, false.
+   */
+  boolean isAllowed(Context context, Constraint constraint) {
+    long generation = getGeneration(context);
+    int result = get(generation);
+    if (result >= 0) {
+      return result == 1;
+    }
+    boolean allowed = constraint.isAllowed(context);
+    put(generation, allowed);
+    return allowed;
+  }
+}
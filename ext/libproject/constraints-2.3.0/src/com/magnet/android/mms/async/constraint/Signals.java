@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2013-2014, Magnet Systems Inc.  All Rights Reserved.
+ */
+package com.magnet.android.mms.async.constraint;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import android.content.Context;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
+
+/**
+ * The input signals of the constraints and their generation counters.  A
+ * constraint declares the signals it depends on, and remembers its last result
+ * with the generation of those signals; the result is reused until one of the
+ * signals changes, so a location update does not re-check the network-gated
+ * calls and a network change does not re-check the geo-gated calls.
+ * <br>
+ * The location generation changes with each {@link LocationSnapshot}.  The
+ * network generations change with each {@link ConnectivitySnapshot} captured
+ * by {@link NetworkSignalReceiver}, which is
+ * registered on the first use; until it is registered, the results depending
+ * on the network are not remembered.  The network results also expire after
+ * {@link #NETWORK_MAX_AGE} in case a change is not broadcasted.
+ */
+public final class Signals {
+  /**
+   * The location fix.
+   */
+  public final static int LOCATION = 0x1;
+  /**
+   * The WiFi connectivity.
+   */
+  public final static int WIFI = 0x2;
+  /**
+   * The WiMax/3G/4G connectivity.
+   */
+  public final static int WWAN = 0x4;
+  /**
+   * The roaming state.
+   */
+  public final static int ROAMING = 0x8;
+  /**
+   * All network signals.
+   */
+  public final static int NETWORK = WIFI | WWAN | ROAMING;
+  /**
+   * All signals; used for the constraints not declaring their signals.
+   */
+  public final static int ALL = LOCATION | NETWORK;
+  /**
+   * The maximum age in milliseconds of a result depending on the network.
+   */
+  public final static long NETWORK_MAX_AGE = 30 * 1000L;
+
+  private final static String TAG = "Signals";
+  private final static long[] sGenerations = new long[4];
+  private static boolean sTracking;
+  private final static int[] sPending = new int[4];
+  private static long sHits;
+  private static long sMisses;
+
+  /**
+   * A constraint declaring the signals it depends on.
+   */
+  public interface Dependent {
+    /**
+     * Get the signals this constraint depends on.
+     * @return A bitmask of {@link Signals#LOCATION}, {@link Signals#WIFI},
+     *          {@link Signals#WWAN} and {@link Signals#ROAMING}.
+     */
+    public int getSignals();
+  }
+
+  private Signals() {
+  }
+
+  /**
+   * Get the signals a constraint depends on.
+   * @param constraint A constraint.
+   * @return The declared signals, or {@link #ALL} if not declared.
+   */
+  public static int of(Constraint constraint) {
+    if (constraint instanceof Dependent) {
+      return ((Dependent) constraint).getSignals();
+    } else if (constraint instanceof WifiConstraint) {
+      return WIFI;
+    } else if (constraint instanceof WWANConstraint) {
+      return WWAN | ROAMING;
+    }
+    return ALL;
+  }
+
+  /**
+   * Get the combined generation of some signals.  It changes whenever any of
+   * the signals changes.
+   * @param context The application context.
+   * @param signals A bitmask of the signals.
+   * @return The generation, or -1 if the signals are not tracked.
+   */
+  public static long getGeneration(Context context, int signals) {
+    if ((signals & NETWORK) != 0 && !track(context)) {
+      return -1L;
+    }
+    long generation = getGeneration(signals);
+    if ((signals & NETWORK) != 0) {
+      generation += SystemClock.elapsedRealtime() / NETWORK_MAX_AGE;
+    }
+    return generation;
+  }
+
+  /**
+   * Get the combined generation of some signals, without the expiry of the
+   * network signals.
+   * @param signals A bitmask of the signals.
+   * @return The generation.
+   */
+  static synchronized long getGeneration(int signals) {
+    long generation = 0;
+    for (int i = 0; i < sGenerations.length; i++) {
+      if ((signals & (1 << i)) != 0) {
+        generation += sGenerations[i];
+      }
+    }
+    return generation;
+  }
+
+  /**
+   * Add the signals of a queued call gated by the network.
+   * @param signals A bitmask of the signals.
+   */
+  static synchronized void addPending(int signals) {
+    for (int i = 0; i < sPending.length; i++) {
+      if ((signals & (1 << i)) != 0) {
+        ++sPending[i];
+      }
+    }
+  }
+
+  /**
+   * Remove the signals of a call which is done.
+   * @param signals A bitmask of the signals.
+   */
+  static synchronized void removePending(int signals) {
+    for (int i = 0; i < sPending.length; i++) {
+      if ((signals & (1 << i)) != 0 && sPending[i] > 0) {
+        --sPending[i];
+      }
+    }
+  }
+
+  /**
+   * Get the signals which the queued calls depend on.
+   * @return A bitmask of the signals.
+   */
+  static synchronized int getPendingSignals() {
+    int signals = 0;
+    for (int i = 0; i < sPending.length; i++) {
+      if (sPending[i] > 0) {
+        signals |= 1 << i;
+      }
+    }
+    return signals;
+  }
+
+  /**
+   * Mark some signals as changed.
+   * @param signals A bitmask of the signals.
+   */
+  public static synchronized void changed(int signals) {
+    for (int i = 0; i < sGenerations.length; i++) {
+      if ((signals & (1 << i)) != 0) {
+        ++sGenerations[i];
+      }
+    }
+  }
+
+  /**
+   * Get the number of results reused.
+   * @return The number of hits.
+   */
+  public static synchronized long getHitCount() {
+    return sHits;
+  }
+
+  /**
+   * Get the number of results evaluated.
+   * @return The number of misses.
+   */
+  public static synchronized long getMissCount() {
+    return sMisses;
+  }
+
+  static synchronized void count(boolean hit) {
+    if (hit) {
+      ++sHits;
+    } else {
+      ++sMisses;
+    }
+  }
+
+  /*
+   * Register the receiver of the network changes once.
+   */
+  static synchronized boolean track(Context context) {
+    if (!sTracking) {
+      try {
+        context.getApplicationContext().registerReceiver(new NetworkSignalReceiver(),
+            new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        sTracking = true;
+      } catch (Exception e) {
+        Log.e(TAG, "Unable to track the network changes", e);
+      }
+    }
+    return sTracking;
+  }
+}
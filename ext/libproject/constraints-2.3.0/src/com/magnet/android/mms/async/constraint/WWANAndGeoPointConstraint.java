@@ -19,37 +19,65 @@ package com.magnet.android.mms.async.constraint;
 import android.content.Context;
 
 /**
- * This composite constraint uses WWANConstraint and GeoPointConstraint.
+ * This composite constraint combines a WiMax/3G/4G {@link ConnectivityConstraint} and
+ * a GeoPointConstraint with {@link AndConstraint}.
  * This class requires {@link NetworkStateReceiver} and
  * {@link LocationReceiver}
  */
 public class WWANAndGeoPointConstraint extends GeoPointConstraint {
   private static final long serialVersionUID = -2322182328513681258L;
-  private WWANConstraint mWWANConstraint;
+  private transient AndConstraint mAnd;
 
   public WWANAndGeoPointConstraint(Context appContext, String id, double lat, 
                               double lng, float radius, long duration, 
                               boolean in) {
     super(appContext, id, lat, lng, radius, duration, in);
-    mWWANConstraint = new WWANConstraint();
+  }
+  
+  /*
+   * Constructor for ConstraintCodec.
+   */
+  WWANAndGeoPointConstraint(String id, double lat, double lng, float radius,
+                            long duration, boolean in) {
+    super(id, lat, lng, radius, duration, in);
   }
   
   @Override
   public boolean isAllowed(Context appContext) {
-    if (!mWWANConstraint.isAllowed(appContext))
-      return false;
-    return super.isAllowed(appContext);
+    return getAnd().isAllowed(appContext);
+  }
+  
+  @Override
+  public int getSignals() {
+    return getAnd().getSignals();
+  }
+  
+  @Override
+  public int getCost() {
+    return getAnd().getCost();
   }
   
   @Override
   public void startInBackground(Context appContext) {
-    super.startInBackground(appContext);
-    mWWANConstraint.startInBackground(appContext);
+    getAnd().startInBackground(appContext);
   }
   
   @Override
   public void stopInBackground(Context appContext) {
-    super.stopInBackground(appContext);
-    mWWANConstraint.stopInBackground(appContext);
+    getAnd().stopInBackground(appContext);
+  }
+  
+  /*
+   * Combine the network and the geo-fence conditions; the cached network state
+   * is checked before the location.
+   */
+  private AndConstraint getAnd() {
+    if (mAnd == null) {
+      GeoPointConstraint geo = new GeoPointConstraint(getId(), getLatitude(),
+          getLongitude(), getRadius(), getDuration(), isIn());
+      geo.shareHysteresis(hysteresis());
+      mAnd = new AndConstraint(new ConnectivityConstraint(ConnectivityConstraint.WWAN), geo);
+    }
+    return mAnd;
   }
 }
@@ -19,36 +19,63 @@ package com.magnet.android.mms.async.constraint;
 import android.content.Context;
 
 /**
- * This composite constraint uses WifiConstraint and GeoRegionConstraint.
+ * This composite constraint combines a WiFi {@link ConnectivityConstraint} and
+ * a GeoRegionConstraint with {@link AndConstraint}.
  * This class requires {@link NetworkStateReceiver} and
  * {@link LocationReceiver}
  */
 public class WifiAndGeoRegionConstraint extends GeoRegionConstraint {
   private static final long serialVersionUID = 676101309282987839L;
-  private WifiConstraint mWifiConstraint;
+  private transient AndConstraint mAnd;
 
   public WifiAndGeoRegionConstraint(Context appContext, String id, 
                                     Point[] region, boolean in) {
     super(appContext, id, region, in);
-    mWifiConstraint = new WifiConstraint();
+  }
+  
+  /*
+   * Constructor for ConstraintCodec.
+   */
+  WifiAndGeoRegionConstraint(String id, long regionHash, Point[] region, boolean in) {
+    super(id, regionHash, region, in);
   }
   
   @Override
   public boolean isAllowed(Context appContext) {
-    if (!mWifiConstraint.isAllowed(appContext))
-      return false;
-    return super.isAllowed(appContext);
+    return getAnd().isAllowed(appContext);
+  }
+  
+  @Override
+  public int getSignals() {
+    return getAnd().getSignals();
+  }
+  
+  @Override
+  public int getCost() {
+    return getAnd().getCost();
   }
   
   @Override
   public void startInBackground(Context appContext) {
-    super.startInBackground(appContext);
-    mWifiConstraint.startInBackground(appContext);
+    getAnd().startInBackground(appContext);
   }
   
   @Override
   public void stopInBackground(Context appContext) {
-    super.stopInBackground(appContext);
-    mWifiConstraint.stopInBackground(appContext);
+    getAnd().stopInBackground(appContext);
+  }
+  
+  /*
+   * Combine the network and the geo-fence conditions; the cached network state
+   * is checked before the location.
+   */
+  private AndConstraint getAnd() {
+    if (mAnd == null) {
+      GeoRegionConstraint geo = new GeoRegionConstraint(getId(), getRegionHash(),
+          getRegion(), isIn());
+      geo.shareHysteresis(hysteresis());
+      mAnd = new AndConstraint(new ConnectivityConstraint(ConnectivityConstraint.WIFI), geo);
+    }
+    return mAnd;
   }
 }